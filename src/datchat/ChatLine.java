@@ -0,0 +1,75 @@
+package datchat;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The payload of a CHAT_LINE, a line of chat as the server delivers it:  who said it, when and where, and what they
+ * said.  The server sends the parts as they are and leaves laying them out for display to whoever shows the line.
+ *
+ * @author adam
+ */
+public class ChatLine {
+
+    /** Formats the time a line was said, unlike the shared SimpleDateFormats it is safe to use from any thread. */
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /** The room the line was posted to, or null for the server as a whole. */
+    public String room;
+    /** The username of whoever said it, the server's name for notices. */
+    public String sender;
+    /** The time the server received it, in milliseconds since the epoch. */
+    public long time;
+    /** The text of the line. */
+    public String text;
+    /** An id for the line, unique among the lines the server it was said on has sent. */
+    public long id;
+
+    /**
+     * Constructor.
+     * @param roomName the room the line was posted to, or null for the server as a whole.
+     * @param from the username of whoever said it.
+     * @param said the time the server received it.
+     * @param message the text of the line.
+     * @param lineId the id of the line.
+     */
+    public ChatLine(String roomName, String from, long said, String message, long lineId) {
+        room = roomName;
+        sender = from;
+        time = said;
+        text = message;
+        id = lineId;
+    }
+
+    /**
+     * Lays out the line for display without its room:  the time, then the sender padded to line up with the longest
+     * username, then the text.
+     * @return the line for display.
+     */
+    public String render() {
+        return render(time, sender, text);
+    }
+
+    /**
+     * Lays out a line of chat for display:  the time, then the sender padded to line up with the longest username,
+     * then the text.
+     * @param time the time it was said, in milliseconds since the epoch.
+     * @param sender the username of whoever said it.
+     * @param text the text.
+     * @return the line for display.
+     */
+    public static String render(long time, String sender, String text) {
+        StringBuilder line = new StringBuilder(TIME_FORMATTER.format(Instant.ofEpochMilli(time)));
+        line.append("  ").append(sender).append(":");
+        for (int i = sender.length(); i < Datchat.MAX_USERNAME_CHARS; i++) {
+            line.append(" ");
+        }
+        return line.append("  ").append(text).toString();
+    }
+
+    @Override
+    public String toString() {
+        return room == null ? render() : "#" + room + "  " + render();
+    }
+}
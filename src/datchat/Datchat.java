@@ -2,13 +2,14 @@ package datchat;
 
 import datchat.client.ClientController;
 import datchat.client.ClientDisplay;
+import datchat.server.ConsoleOutput;
 import datchat.server.Server;
+import datchat.server.ServerConfig;
 import datchat.server.ServerController;
 import datchat.server.ServerDisplay;
 import datchat.server.ServerLog;
 import java.text.SimpleDateFormat;
 import javax.swing.UIManager;
-import javax.swing.UnsupportedLookAndFeelException;
 
 /**
  *
@@ -25,9 +26,18 @@ public class Datchat {
     public static final SimpleDateFormat CHAT_FILE_FORMATTER = new SimpleDateFormat("yy-MM-dd_HH.mm.ss");
     
     public static final int MAX_USERNAME_CHARS = 12;
+    public static final int MAX_ROOM_CHARS = 24;
+    /** The longest chat line a server accepts, far enough below the largest frame that the line it sends on always fits. */
+    public static final int MAX_MESSAGE_CHARS = 4096;
+    /** The default most lines kept in a chat or log text area before the oldest are dropped. */
+    public static final int DEFAULT_SCROLLBACK_LINES = 5000;
+    /** The default most characters kept in a chat or log text area before the oldest lines are dropped. */
+    public static final int DEFAULT_SCROLLBACK_CHARS = 1 << 20;
     
     private static final String SERVER_MODE = "-s";
     private static final String SERVER_LOG_MODE = "-sl";
+    private static final String HEADLESS_MODE = "-d";
+    private static final String HEADLESS_LOG_MODE = "-dl";
     private static final String CLIENT_MODE = "-c";
     
     /** Prints out the  usage of this application. */
@@ -47,6 +57,23 @@ public class Datchat {
         System.out.println("   - Example:");
         System.out.println("        java -jar -sl 54200");
         
+        System.out.println("How to launch Server (headless, no display needed, output to the console):");
+        System.out.println("   - Requires two args for Server:  mode and IP, -dl to log to files as well");
+        System.out.println("   - Example:");
+        System.out.println("        java -jar -d 54200");
+        
+        System.out.println("Server connection mode:");
+        System.out.println("   - Defaults to one thread per client, set " + ServerConfig.PROPERTY_PREFIX + "mode to change it");
+        System.out.println("   - Modes are thread_per_client, nio and virtual_thread, which needs Java 21 and otherwise uses platform threads");
+        System.out.println("   - Example:");
+        System.out.println("        java -D" + ServerConfig.PROPERTY_PREFIX + "mode=nio -D" + ServerConfig.PROPERTY_PREFIX + "ioThreads=2 -jar -s 54200");
+        
+        System.out.println("Linking servers into one chat network:");
+        System.out.println("   - Set " + ServerConfig.PROPERTY_PREFIX + "peers to the servers to link to, and optionally " + ServerConfig.PROPERTY_PREFIX + "nodeId");
+        System.out.println("   - Example:");
+        System.out.println("        java -D" + ServerConfig.PROPERTY_PREFIX + "peers=chatServer2:54200 -jar -s 54200");
+        System.out.println("   - Links are only accepted from the hosts of configured peers, or from servers presenting " + ServerConfig.PROPERTY_PREFIX + "peerSecret");
+        
         exit();
     }
 
@@ -72,6 +99,50 @@ public class Datchat {
         
         return port;
     }
+    /** Sets the host OS look and feel, only called for the modes that show a window. */
+    private static void setLookAndFeel() {
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (Exception ex) {
+            // Caught broadly, naming Swing's exception here would load it for the headless server too.
+            System.out.println("Error setting look and feel.");
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Runs the server without a display, writing its output to the console and optionally the logs directory.  The
+     * server runs on the calling thread until it is stopped, which a shutdown hook does when the process is told to
+     * terminate, so it can be run by a service manager.
+     * @param port the port to listen on.
+     * @param log true to write the chat and event logs as well.
+     */
+    private static void runHeadless(int port, boolean log) {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        Server server = new Server(config);
+        ServerController serverCtrl;
+        ServerLog serverLog = null;
+        if (log) {
+            serverLog = new ServerLog(config);
+            serverCtrl = new ServerController(server, new ConsoleOutput(), serverLog);
+            server.setChatArchive(serverLog);
+        } else {
+            serverCtrl = new ServerController(server, new ConsoleOutput());
+        }
+        server.addServerListener(serverCtrl);
+        
+        // Stop the server before closing the logs, so its last words are written.
+        ServerLog closeLog = serverLog;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            serverCtrl.requestServerStop();
+            if (closeLog != null) {
+                closeLog.close();
+            }
+        }, "datchat-shutdown"));
+        
+        serverCtrl.requestServerStart(port);
+    }
+    
     /**
      * Runs DatChat in either server or client mode.
      * @param args the command line arguments
@@ -84,15 +155,6 @@ public class Datchat {
             exit();
         }
         
-        // Set Host OS Look and Feel.
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException ex) {
-            System.out.println("Error setting look and feel.");
-            ex.printStackTrace();
-        }        
-        
-        
         // validate/store args
         // MODE (server or client) - Arg index 0.
         String mode = args[0];
@@ -107,13 +169,18 @@ public class Datchat {
                 }
                 // Get Port
                 port = getPort(args[1]);
+                setLookAndFeel();
                 
                 // Init Server (model), display (view) and controller.
-                Server server = new Server();
-                ServerDisplay serverDisplay = new ServerDisplay(port);
+                ServerConfig config = ServerConfig.fromSystemProperties();
+                Server server = new Server(config);
+                ServerDisplay serverDisplay = new ServerDisplay(port, config);
                 ServerController serverCtrl;
                 if (mode.contains("l")) {
-                    serverCtrl = new ServerController(server, serverDisplay, new ServerLog());
+                    ServerLog serverLog = new ServerLog(config);
+                    Runtime.getRuntime().addShutdownHook(new Thread(serverLog::close));
+                    serverCtrl = new ServerController(server, serverDisplay, serverLog);
+                    server.setChatArchive(serverLog);
                 } else {
                     serverCtrl = new ServerController(server, serverDisplay);
                 }
@@ -128,6 +195,16 @@ public class Datchat {
                 
                 break;
                 
+            case HEADLESS_MODE:
+            case HEADLESS_LOG_MODE:
+                if (args.length != 2) {
+                    System.out.println("Did not provide valid argument length.");
+                    printUsage();
+                    exit();
+                }
+                runHeadless(getPort(args[1]), mode.contains("l"));
+                break;
+                
             case CLIENT_MODE:
                 if (args.length != 4) {
                     System.out.println("Did not provide valid argument length.");
@@ -138,6 +215,7 @@ public class Datchat {
                 String hostname = args[1];
                 port = getPort(args[2]);
                 String user = args[3];
+                setLookAndFeel();
                 
                 // Create and alunch the client display parameters.
                 ClientDisplay cd = new ClientDisplay(hostname, port, user);
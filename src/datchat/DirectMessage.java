@@ -0,0 +1,50 @@
+package datchat;
+
+/**
+ * The payload of a DIRECT_MESSAGE, a line of chat sent privately from one user to another.
+ *
+ * @author adam
+ */
+public class DirectMessage {
+
+    /** The username of the sender, filled in by the server. */
+    public String from;
+
+    /** The username of the recipient. */
+    public String to;
+
+    /** The text of the message. */
+    public String text;
+
+    /** The time the server received it, in milliseconds since the epoch, filled in by the server. */
+    public long time;
+
+    /**
+     * Constructor.
+     * @param sender the username of the sender, null when sent by a client.
+     * @param recipient the username of the recipient.
+     * @param message the text of the message.
+     */
+    public DirectMessage(String sender, String recipient, String message) {
+        this(sender, recipient, message, 0);
+    }
+
+    /**
+     * Constructor.
+     * @param sender the username of the sender, null when sent by a client.
+     * @param recipient the username of the recipient.
+     * @param message the text of the message.
+     * @param sent the time the server received it, zero when sent by a client.
+     */
+    public DirectMessage(String sender, String recipient, String message, long sent) {
+        from = sender;
+        to = recipient;
+        text = message;
+        time = sent;
+    }
+
+    @Override
+    public String toString() {
+        return from + " -> " + to + "  " + text;
+    }
+}
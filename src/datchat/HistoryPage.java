@@ -0,0 +1,37 @@
+package datchat;
+
+import java.util.List;
+
+/**
+ * The payload of a HISTORY_PAGE, the chat lines logged just before a point in the chat archive, oldest first.
+ *
+ * @author adam
+ */
+public class HistoryPage {
+
+    /** Where the oldest line on this page is in the archive, sent back in a HISTORY_REQUEST for the page before. */
+    public long cursor;
+
+    /** True if there are older lines than these. */
+    public boolean more;
+
+    /** The lines, oldest first, each prefixed with the date and time it was logged. */
+    public List<String> lines;
+
+    /**
+     * Constructor.
+     * @param oldestCursor where the oldest line on this page is in the archive.
+     * @param hasMore true if there are older lines than these.
+     * @param pageLines the lines, oldest first.
+     */
+    public HistoryPage(long oldestCursor, boolean hasMore, List<String> pageLines) {
+        cursor = oldestCursor;
+        more = hasMore;
+        lines = pageLines;
+    }
+
+    @Override
+    public String toString() {
+        return "History page:  " + lines.size() + " lines from " + cursor + (more ? ", more before them" : "");
+    }
+}
@@ -0,0 +1,30 @@
+package datchat;
+
+/**
+ * The payload of a HISTORY_REQUEST, a request for the chat lines logged before a page already shown.
+ *
+ * @author adam
+ */
+public class HistoryRequest {
+
+    /** The cursor of the oldest page shown, to page back from, or zero for the lines before those replayed on login. */
+    public long before;
+
+    /** The most lines wanted. */
+    public int limit;
+
+    /**
+     * Constructor.
+     * @param beforeCursor the cursor of the oldest page shown, or zero for the lines before those replayed on login.
+     * @param maxLines the most lines wanted.
+     */
+    public HistoryRequest(long beforeCursor, int maxLines) {
+        before = beforeCursor;
+        limit = maxLines;
+    }
+
+    @Override
+    public String toString() {
+        return "History request:  " + limit + " lines before " + before;
+    }
+}
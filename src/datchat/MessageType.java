@@ -1,14 +1,56 @@
 package datchat;
 
 /**
- * An enumeration of Message Types.
+ * An enumeration of Message Types.  The wire codec identifies types by ordinal, so new types must be added at the end.
  * @author adam
  */
 public enum MessageType {
-    /** A text message sent from clients to the server, or from the server to the client. */
+    /** A line of server-wide chat, only sent from clients to the server, which passes it on as a CHAT_LINE. */
     CHAT_MESSAGE,
     /** A request to disconnect from the server only sent from clients to the server. */
     LOGOUT,
     /** A status message about a user, only sent from servers to clients. */
-    USER_STATUS;
+    USER_STATUS,
+    /** The first message a client sends, carrying the username it wants to chat as, only sent from clients to the server. */
+    LOGIN,
+    /** A request to join the named room (a String payload), only sent from clients to the server. */
+    JOIN_ROOM,
+    /** A request to leave the named room (a String payload), only sent from clients to the server. */
+    LEAVE_ROOM,
+    /** A message posted to a room (a RoomMessage payload), only sent from clients to the server. */
+    ROOM_MESSAGE,
+    /** A private message to one user (a DirectMessage payload), sent from clients to the server and on to the recipient. */
+    DIRECT_MESSAGE,
+    /** A description of why a request failed (a String payload), only sent from servers to clients. */
+    ERROR,
+    /** A request to search the chat archive (a SearchRequest payload), only sent from clients to the server. */
+    SEARCH,
+    /** A page of chat archive search results (a SearchResults payload), only sent from servers to clients. */
+    SEARCH_RESULTS,
+    /** A request for older chat lines (a HistoryRequest payload), only sent from clients to the server. */
+    HISTORY_REQUEST,
+    /** A page of older chat lines (a HistoryPage payload), only sent from servers to clients. */
+    HISTORY_PAGE,
+    /** The first message on a link between servers (a PeerHello payload), sent by both ends of the link. */
+    PEER_LINK,
+    /** Chat traffic passed between linked servers (a Relay payload), only sent from servers to servers. */
+    RELAY,
+    /** A request, carried in a RELAY, for every server to announce its users again, no payload. */
+    PEER_RESYNC,
+    /** The statuses of every online user (a Presence payload), sent by the server to a client once it logs in. */
+    PRESENCE_SNAPSHOT,
+    /**
+     * The net changes in server-wide user statuses over a short window (a Presence payload), sent by the server to
+     * every client in place of a USER_STATUS per change.
+     */
+    PRESENCE_DELTA,
+    /** A heartbeat asking the other end to show it is still there, no payload. */
+    PING,
+    /** The reply to a PING, no payload. */
+    PONG,
+    /**
+     * A line of chat, server-wide or in a room (a ChatLine payload), sent by the server to clients and relayed between
+     * servers.
+     */
+    CHAT_LINE;
 }
@@ -0,0 +1,33 @@
+package datchat;
+
+/**
+ * The payload of a PEER_LINK, the first message on a link between servers.  The server that dials names itself and,
+ * if the network is configured with one, presents the shared peer secret; the server that accepts replies with its
+ * own name only.
+ *
+ * @author adam
+ */
+public class PeerHello {
+
+    /** The node id of the sender. */
+    public String nodeId;
+
+    /** The shared peer secret, null if the sender has none or is replying. */
+    public String secret;
+
+    /**
+     * Constructor.
+     * @param id the node id of the sender.
+     * @param peerSecret the shared peer secret, or null.
+     */
+    public PeerHello(String id, String peerSecret) {
+        nodeId = id;
+        secret = peerSecret;
+    }
+
+    @Override
+    public String toString() {
+        // Never show the secret.
+        return "Peer " + nodeId;
+    }
+}
@@ -0,0 +1,28 @@
+package datchat;
+
+import java.util.List;
+
+/**
+ * The payload of a PRESENCE_SNAPSHOT, the statuses of every user online when a client logs in, sent as one message
+ * rather than one USER_STATUS per user, and of a PRESENCE_DELTA, the users who have come or gone since the last.
+ *
+ * @author adam
+ */
+public class Presence {
+
+    /** The user statuses. */
+    public List<UserStatus> statuses;
+
+    /**
+     * Constructor.
+     * @param userStatuses the user statuses.
+     */
+    public Presence(List<UserStatus> userStatuses) {
+        statuses = userStatuses;
+    }
+
+    @Override
+    public String toString() {
+        return "Presence:  " + statuses.size() + " users";
+    }
+}
@@ -0,0 +1,42 @@
+package datchat;
+
+/**
+ * The payload of a RELAY, a message passed between linked servers.  Every message is stamped by the server it
+ * started on with that server's node id and its next sequence number, so a server reached by more than one path
+ * through the network can recognise and drop the copies.
+ *
+ * @author adam
+ */
+public class Relay {
+
+    /** The node id of the server the message started on. */
+    public String origin;
+
+    /** The origin server's sequence number for the message. */
+    public long sequence;
+
+    /** When the last server to pass the message on sent it, in epoch microseconds. */
+    public long sentTime;
+
+    /** The message being relayed, a CHAT_LINE, USER_STATUS or PEER_RESYNC. */
+    public ChatMessage message;
+
+    /**
+     * Constructor.
+     * @param originId the node id of the server the message started on.
+     * @param seq the origin server's sequence number for the message.
+     * @param sent when the message was sent on this hop, in epoch microseconds.
+     * @param msg the message being relayed.
+     */
+    public Relay(String originId, long seq, long sent, ChatMessage msg) {
+        origin = originId;
+        sequence = seq;
+        sentTime = sent;
+        message = msg;
+    }
+
+    @Override
+    public String toString() {
+        return "Relay from " + origin + " #" + sequence + ":  " + message.getType() + " " + message.getMessage();
+    }
+}
@@ -0,0 +1,30 @@
+package datchat;
+
+/**
+ * The payload of a ROOM_MESSAGE, a line of chat posted to a named room.
+ *
+ * @author adam
+ */
+public class RoomMessage {
+
+    /** The name of the room the message was posted to. */
+    public String room;
+
+    /** The text of the message. */
+    public String text;
+
+    /**
+     * Constructor.
+     * @param roomName the name of the room the message was posted to.
+     * @param message the text of the message.
+     */
+    public RoomMessage(String roomName, String message) {
+        room = roomName;
+        text = message;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + room + "  " + text;
+    }
+}
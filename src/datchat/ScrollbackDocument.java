@@ -0,0 +1,77 @@
+package datchat;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+
+/**
+ * A document for a scrolling text display that keeps only the most recent lines.  When text appended to the end takes
+ * it past its line or character limit, the oldest lines are removed from the top.  Text inserted anywhere else, such
+ * as a page of earlier history, is kept until the next append.
+ * <p>
+ * Removing lines from the top of a document moves every line below them, so rather than trim a line per append it
+ * trims an eighth of the limits at once, down to seven eighths full.  That keeps the cost of trimming spread evenly
+ * over the appends that filled the space, however large the limits.  Trimmed lines are gone from the display but not
+ * the logs.
+ *
+ * @author adam
+ */
+public class ScrollbackDocument extends PlainDocument {
+
+    /** Serialization ID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The most lines kept. */
+    private final int m_maxLines;
+
+    /** The most characters kept. */
+    private final int m_maxChars;
+
+    /**
+     * Constructor.
+     * @param maxLines the most lines kept, at least one.
+     * @param maxChars the most characters kept, at least one.
+     */
+    public ScrollbackDocument(int maxLines, int maxChars) {
+        m_maxLines = Math.max(1, maxLines);
+        m_maxChars = Math.max(1, maxChars);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Trims the oldest lines if appending takes the document past its limits.
+     */
+    @Override
+    public void insertString(int offs, String str, AttributeSet a) throws BadLocationException {
+        boolean append = offs == getLength();
+        super.insertString(offs, str, a);
+        if (append) {
+            trim();
+        }
+    }
+
+    /**
+     * Removes whole lines from the top until the document is back to seven eighths of its limits, if it is over
+     * either of them.
+     * @throws BadLocationException never, the lines removed are always within the document.
+     */
+    private void trim() throws BadLocationException {
+        Element root = getDefaultRootElement();
+        int lines = root.getElementCount();
+        int length = getLength();
+        if (lines <= m_maxLines && length <= m_maxChars) {
+            return;
+        }
+        int keepLines = m_maxLines - m_maxLines / 8;
+        int keepChars = m_maxChars - m_maxChars / 8;
+        // The last line is kept whatever its size, it is the one just appended.
+        int drop = Math.max(0, lines - keepLines);
+        while (drop < lines - 1 && length - root.getElement(drop).getStartOffset() > keepChars) {
+            drop++;
+        }
+        if (drop > 0) {
+            remove(0, root.getElement(drop).getStartOffset());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package datchat;
+
+/**
+ * The payload of a SEARCH, a request for one page of the chat archive lines matching a query.
+ *
+ * @author adam
+ */
+public class SearchRequest {
+
+    /** The words to search for, a line must contain all of them to match. */
+    public String query;
+
+    /** The page of results wanted, zero for the newest matches. */
+    public int page;
+
+    /**
+     * Constructor.
+     * @param searchQuery the words to search for.
+     * @param pageNumber the page of results wanted, zero for the newest matches.
+     */
+    public SearchRequest(String searchQuery, int pageNumber) {
+        query = searchQuery;
+        page = pageNumber;
+    }
+
+    @Override
+    public String toString() {
+        return "Search:  '" + query + "' page " + page;
+    }
+}
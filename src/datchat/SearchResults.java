@@ -0,0 +1,42 @@
+package datchat;
+
+import java.util.List;
+
+/**
+ * The payload of a SEARCH_RESULTS, one page of the chat archive lines matching a query, newest first.
+ *
+ * @author adam
+ */
+public class SearchResults {
+
+    /** The query the results are for. */
+    public String query;
+
+    /** The page of results, zero for the newest matches. */
+    public int page;
+
+    /** The number of matching lines in the whole archive. */
+    public int totalHits;
+
+    /** The matching lines on this page, each prefixed with the date and time it was logged. */
+    public List<String> hits;
+
+    /**
+     * Constructor.
+     * @param searchQuery the query the results are for.
+     * @param pageNumber the page of results.
+     * @param total the number of matching lines in the whole archive.
+     * @param pageHits the matching lines on this page.
+     */
+    public SearchResults(String searchQuery, int pageNumber, int total, List<String> pageHits) {
+        query = searchQuery;
+        page = pageNumber;
+        totalHits = total;
+        hits = pageHits;
+    }
+
+    @Override
+    public String toString() {
+        return "Search results:  '" + query + "' page " + page + ", " + hits.size() + " of " + totalHits + " hits";
+    }
+}
@@ -10,14 +10,28 @@ public class UserStatus implements Serializable, Comparable<UserStatus> {
 
     public String user;
     public String hostname;
+    /** The user's IP address, which tells users apart while their hostname may still be changing. */
+    public String address;
     public long sinceTime;
     public OnlineStatus status;
+    /** The room this status is scoped to, or null for the user's presence on the server as a whole. */
+    public String room;
     
     public UserStatus(String username, String host, long since, OnlineStatus oStatus) {
+        this(username, host, host, since, oStatus, null);
+    }
+
+    public UserStatus(String username, String host, long since, OnlineStatus oStatus, String roomName) {
+        this(username, host, host, since, oStatus, roomName);
+    }
+
+    public UserStatus(String username, String host, String addr, long since, OnlineStatus oStatus, String roomName) {
         user = username;
         status = oStatus;
         hostname = host;
+        address = addr;
         sinceTime = since;
+        room = roomName;
     }
 
     @Override
@@ -25,15 +39,25 @@ public class UserStatus implements Serializable, Comparable<UserStatus> {
         return this.user.compareTo(t.user);
     }
     
-    public boolean isSameUser(String username, String host) {
-        if (username.equals(user) && hostname.equals(host)) {
+    public boolean isSameUser(String username, String addr) {
+        if (username.equals(user) && address.equals(addr)) {
             return true;
         }
         return false;
     }
+
+    /**
+     * Returns the key users are told apart by, the username and address.
+     * @return the user key.
+     */
+    public String getUserKey() {
+        return user + "@" + address;
+    }
     
     @Override
     public String toString() {
-        return "User Status:  " + user + " - " + status.toString() + " - " + hostname + " - " + sinceTime;
+        String host = hostname.equals(address) ? hostname : hostname + " (" + address + ")";
+        String str = "User Status:  " + user + " - " + status.toString() + " - " + host + " - " + sinceTime;
+        return room == null ? str : str + " - #" + room;
     }
 }
\ No newline at end of file
@@ -0,0 +1,580 @@
+package datchat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the frames exchanged between clients and the server.  Every frame on the wire is a four byte
+ * big-endian payload length followed by the payload itself, so a reader can always find message boundaries without
+ * blocking on a partially received object.
+ * <p>
+ * Payloads are a compact binary encoding written by hand, no reflection or Java serialization is involved.  A payload
+ * starts with one byte holding the {@link MessageType} ordinal, followed by the fields of the message:
+ * <ul>
+ * <li>CHAT_MESSAGE, LOGOUT, LOGIN, JOIN_ROOM, LEAVE_ROOM, ERROR - a string.</li>
+ * <li>PEER_LINK - node id and secret strings.</li>
+ * <li>USER_STATUS - user, hostname and address strings, the eight byte since-time, one byte {@link OnlineStatus}
+ * ordinal and the room string.</li>
+ * <li>ROOM_MESSAGE - room and text strings.</li>
+ * <li>DIRECT_MESSAGE - from, to and text strings, then the eight byte time.</li>
+ * <li>SEARCH - the query string and page.</li>
+ * <li>SEARCH_RESULTS - the query string, page, total hits and a list of hit strings.</li>
+ * <li>HISTORY_REQUEST - the eight byte before-cursor and the limit.</li>
+ * <li>HISTORY_PAGE - the eight byte cursor, a one byte more flag and a list of line strings.</li>
+ * <li>RELAY - the origin string, eight byte sequence and sent-time, then the relayed message's type and fields.</li>
+ * <li>PEER_RESYNC - nothing.</li>
+ * <li>PRESENCE_SNAPSHOT - a list of the distinct hostname and address strings, then a list of statuses, each the user
+ * string, the indexes of its hostname and address, its since-time as the gap from the previous status's, one byte
+ * {@link OnlineStatus} ordinal and the room string.  Statuses are written in since-time order so the gaps stay
+ * small.</li>
+ * <li>PRESENCE_DELTA - as PRESENCE_SNAPSHOT.</li>
+ * <li>PING, PONG - nothing.</li>
+ * <li>CHAT_LINE - room and sender strings, the eight byte time, the text string and the eight byte id.</li>
+ * </ul>
+ * Strings are a variable length integer holding the UTF-8 byte count plus one (zero meaning null), then the bytes.
+ * Small counts such as pages and gaps between times are variable length integers, and lists are a count followed by
+ * their elements.
+ *
+ * @author adam
+ */
+public class WireCodec {
+
+    /** The number of bytes in a frame's length header. */
+    public static final int HEADER_BYTES = 4;
+
+    /** The largest payload a peer is allowed to send, anything larger is treated as a corrupt stream. */
+    public static final int MAX_PAYLOAD_BYTES = 1 << 20;
+
+    /** Message types by ordinal, for decoding. */
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /** Online statuses by ordinal, for decoding. */
+    private static final OnlineStatus[] STATUSES = OnlineStatus.values();
+
+    /**
+     * Encodes the supplied message into a complete frame (length header and payload).
+     * @param msg the message to encode.
+     * @return the encoded frame.
+     * @throws IllegalArgumentException if the message payload does not match its type, or the frame would be larger
+     *                                  than the receiver accepts.
+     */
+    public static byte[] encodeFrame(ChatMessage msg) {
+        FrameWriter out = new FrameWriter();
+        writeMessage(out, msg);
+        byte[] frame = out.toFrame();
+        // Fail here rather than send a frame the receiver's checkLength would drop the connection over.
+        if (frame.length - HEADER_BYTES > MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException(msg.getType() + " is too large to send:  " + (frame.length - HEADER_BYTES) + " bytes");
+        }
+        return frame;
+    }
+
+    /**
+     * Writes a message's type and fields.
+     * @param out the frame to write to.
+     * @param msg the message to write.
+     * @throws IllegalArgumentException if the message payload does not match its type.
+     */
+    private static void writeMessage(FrameWriter out, ChatMessage msg) {
+        out.writeByte(msg.getType().ordinal());
+        switch (msg.getType()) {
+            case CHAT_MESSAGE:
+            case LOGOUT:
+            case LOGIN:
+            case JOIN_ROOM:
+            case LEAVE_ROOM:
+            case ERROR:
+                out.writeString((String) msg.getMessage());
+                break;
+            case PEER_LINK:
+                PeerHello hello = (PeerHello) msg.getMessage();
+                out.writeString(hello.nodeId);
+                out.writeString(hello.secret);
+                break;
+            case USER_STATUS:
+                UserStatus status = (UserStatus) msg.getMessage();
+                out.writeString(status.user);
+                out.writeString(status.hostname);
+                out.writeString(status.address);
+                out.writeLong(status.sinceTime);
+                out.writeByte(status.status.ordinal());
+                out.writeString(status.room);
+                break;
+            case ROOM_MESSAGE:
+                RoomMessage roomMsg = (RoomMessage) msg.getMessage();
+                out.writeString(roomMsg.room);
+                out.writeString(roomMsg.text);
+                break;
+            case DIRECT_MESSAGE:
+                DirectMessage direct = (DirectMessage) msg.getMessage();
+                out.writeString(direct.from);
+                out.writeString(direct.to);
+                out.writeString(direct.text);
+                out.writeLong(direct.time);
+                break;
+            case SEARCH:
+                SearchRequest search = (SearchRequest) msg.getMessage();
+                out.writeString(search.query);
+                out.writeVarInt(search.page);
+                break;
+            case SEARCH_RESULTS:
+                SearchResults results = (SearchResults) msg.getMessage();
+                out.writeString(results.query);
+                out.writeVarInt(results.page);
+                out.writeVarInt(results.totalHits);
+                writeStrings(out, results.hits);
+                break;
+            case HISTORY_REQUEST:
+                HistoryRequest historyRequest = (HistoryRequest) msg.getMessage();
+                out.writeLong(historyRequest.before);
+                out.writeVarInt(historyRequest.limit);
+                break;
+            case HISTORY_PAGE:
+                HistoryPage history = (HistoryPage) msg.getMessage();
+                out.writeLong(history.cursor);
+                out.writeByte(history.more ? 1 : 0);
+                writeStrings(out, history.lines);
+                break;
+            case RELAY:
+                Relay relay = (Relay) msg.getMessage();
+                out.writeString(relay.origin);
+                out.writeLong(relay.sequence);
+                out.writeLong(relay.sentTime);
+                writeMessage(out, relay.message);
+                break;
+            case PEER_RESYNC:
+            case PING:
+            case PONG:
+                break;
+            case PRESENCE_SNAPSHOT:
+            case PRESENCE_DELTA:
+                writePresence(out, ((Presence) msg.getMessage()).statuses);
+                break;
+            case CHAT_LINE:
+                ChatLine line = (ChatLine) msg.getMessage();
+                out.writeString(line.room);
+                out.writeString(line.sender);
+                out.writeLong(line.time);
+                out.writeString(line.text);
+                out.writeLong(line.id);
+                break;
+            default:
+                throw new IllegalArgumentException("No wire encoding for message type:  " + msg.getType());
+        }
+    }
+
+    /**
+     * Decodes a single payload (without its length header).
+     * @param buf the buffer holding the payload.
+     * @param offset the offset of the payload within the buffer.
+     * @param length the length of the payload.
+     * @return the decoded message.
+     * @throws IOException if the payload is corrupt.
+     */
+    public static ChatMessage decodePayload(byte[] buf, int offset, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+        try {
+            return readMessage(in);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException("Truncated or corrupt frame.", ex);
+        }
+    }
+
+    /**
+     * Reads a message's type and fields.
+     * @param in the buffer to read from.
+     * @return the message.
+     * @throws IOException if the message is corrupt.
+     */
+    private static ChatMessage readMessage(ByteBuffer in) throws IOException {
+        MessageType type = TYPES[readOrdinal(in, TYPES.length)];
+        switch (type) {
+            case CHAT_MESSAGE:
+            case LOGOUT:
+            case LOGIN:
+            case JOIN_ROOM:
+            case LEAVE_ROOM:
+            case ERROR:
+                return new ChatMessage(type, readString(in));
+            case PEER_LINK:
+                String nodeId = readString(in);
+                return new ChatMessage(type, new PeerHello(nodeId, readString(in)));
+            case USER_STATUS:
+                String user = readString(in);
+                String hostname = readString(in);
+                String address = readString(in);
+                long since = in.getLong();
+                OnlineStatus status = STATUSES[readOrdinal(in, STATUSES.length)];
+                String statusRoom = readString(in);
+                return new ChatMessage(type, new UserStatus(user, hostname, address, since, status, statusRoom));
+            case ROOM_MESSAGE:
+                String room = readString(in);
+                return new ChatMessage(type, new RoomMessage(room, readString(in)));
+            case DIRECT_MESSAGE:
+                String from = readString(in);
+                String to = readString(in);
+                String directText = readString(in);
+                return new ChatMessage(type, new DirectMessage(from, to, directText, in.getLong()));
+            case SEARCH:
+                String query = readString(in);
+                return new ChatMessage(type, new SearchRequest(query, readVarInt(in)));
+            case SEARCH_RESULTS:
+                String resultsQuery = readString(in);
+                int page = readVarInt(in);
+                int totalHits = readVarInt(in);
+                return new ChatMessage(type, new SearchResults(resultsQuery, page, totalHits, readStrings(in)));
+            case HISTORY_REQUEST:
+                long before = in.getLong();
+                return new ChatMessage(type, new HistoryRequest(before, readVarInt(in)));
+            case HISTORY_PAGE:
+                long cursor = in.getLong();
+                boolean more = in.get() != 0;
+                return new ChatMessage(type, new HistoryPage(cursor, more, readStrings(in)));
+            case RELAY:
+                String origin = readString(in);
+                long sequence = in.getLong();
+                long sentTime = in.getLong();
+                // Checked before reading on, so a corrupt frame can't recurse without limit.
+                if ((in.get(in.position()) & 0xFF) == MessageType.RELAY.ordinal()) {
+                    throw new IOException("Nested relay in frame.");
+                }
+                return new ChatMessage(type, new Relay(origin, sequence, sentTime, readMessage(in)));
+            case PEER_RESYNC:
+            case PING:
+            case PONG:
+                return new ChatMessage(type, null);
+            case PRESENCE_SNAPSHOT:
+            case PRESENCE_DELTA:
+                return new ChatMessage(type, new Presence(readPresence(in)));
+            case CHAT_LINE:
+                String lineRoom = readString(in);
+                String sender = readString(in);
+                long time = in.getLong();
+                String text = readString(in);
+                return new ChatMessage(type, new ChatLine(lineRoom, sender, time, text, in.getLong()));
+            default:
+                throw new IOException("No wire encoding for message type:  " + type);
+        }
+    }
+
+    /**
+     * Validates a payload length read from a frame header.
+     * @param length the length read.
+     * @throws IOException if the length is out of range.
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Invalid frame length:  " + length);
+        }
+    }
+
+    /**
+     * Encodes the supplied message and writes it to the stream as a single frame.
+     * @param out the stream to write to.
+     * @param msg the message to write.
+     * @throws IOException if the write fails.
+     */
+    public static void writeFrame(OutputStream out, ChatMessage msg) throws IOException {
+        out.write(encodeFrame(msg));
+        out.flush();
+    }
+
+    /**
+     * Blocks until a full frame has been read from the stream and returns its decoded message.
+     * @param in the stream to read from.
+     * @return the decoded message.
+     * @throws IOException if the stream fails or closes, or the frame is corrupt.
+     */
+    public static ChatMessage readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decodePayload(payload, 0, length);
+    }
+
+    /**
+     * Reads a one byte ordinal, validating it against the number of constants.
+     * @param in the buffer to read from.
+     * @param count the number of constants in the enum.
+     * @return the ordinal.
+     * @throws IOException if the ordinal is out of range.
+     */
+    private static int readOrdinal(ByteBuffer in, int count) throws IOException {
+        int ordinal = in.get() & 0xFF;
+        if (ordinal >= count) {
+            throw new IOException("Unknown enum ordinal in frame:  " + ordinal);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Reads a variable length integer, seven bits per byte, low bits first.
+     * @param in the buffer to read from.
+     * @return the integer, never negative.
+     * @throws IOException if the integer is longer than five bytes, overflows an int or is negative.
+     */
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            // The fifth byte carries the top four bits and ends the integer, anything more would overflow.
+            if (shift == 28 && (b & 0xF0) != 0) {
+                throw new IOException("Malformed length in frame.");
+            }
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                // Every integer written this way is a length, count or page number, a negative one is corrupt.
+                if (value < 0) {
+                    throw new IOException("Negative length in frame:  " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in frame.");
+    }
+
+    /**
+     * Reads a string written by {@link FrameWriter#writeString(String)}.
+     * @param in the buffer to read from.
+     * @return the string, possibly null.
+     * @throws IOException if the string length is invalid.
+     */
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("String length exceeds frame:  " + length);
+        }
+        String str = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return str;
+    }
+
+    /**
+     * Writes a list of strings as its size followed by the strings.
+     * @param out the frame to write to.
+     * @param strings the strings to write.
+     */
+    private static void writeStrings(FrameWriter out, List<String> strings) {
+        out.writeVarInt(strings.size());
+        for (String str : strings) {
+            out.writeString(str);
+        }
+    }
+
+    /**
+     * Reads a list of strings written by {@link #writeStrings(FrameWriter, List)}.
+     * @param in the buffer to read from.
+     * @return the strings.
+     * @throws IOException if the list length is invalid.
+     */
+    private static List<String> readStrings(ByteBuffer in) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Invalid list length in frame:  " + count);
+        }
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /**
+     * Writes a list of user statuses compactly, with each hostname and address written once and since-times as gaps.
+     * @param out the frame to write to.
+     * @param statuses the statuses to write.
+     */
+    private static void writePresence(FrameWriter out, List<UserStatus> statuses) {
+        List<UserStatus> sorted = new ArrayList<>(statuses);
+        sorted.sort(Comparator.comparingLong((UserStatus us) -> us.sinceTime));
+        Map<String, Integer> hostIndexes = new HashMap<>();
+        List<String> hosts = new ArrayList<>();
+        for (UserStatus status : sorted) {
+            for (String host : new String[] {status.hostname, status.address}) {
+                if (!hostIndexes.containsKey(host)) {
+                    hostIndexes.put(host, hosts.size());
+                    hosts.add(host);
+                }
+            }
+        }
+        writeStrings(out, hosts);
+        out.writeVarInt(sorted.size());
+        long since = 0;
+        for (UserStatus status : sorted) {
+            out.writeString(status.user);
+            out.writeVarInt(hostIndexes.get(status.hostname));
+            out.writeVarInt(hostIndexes.get(status.address));
+            out.writeVarLong(status.sinceTime - since);
+            out.writeByte(status.status.ordinal());
+            out.writeString(status.room);
+            since = status.sinceTime;
+        }
+    }
+
+    /**
+     * Reads a list of user statuses written by {@link #writePresence(FrameWriter, List)}.
+     * @param in the buffer to read from.
+     * @return the statuses.
+     * @throws IOException if the list is corrupt.
+     */
+    private static List<UserStatus> readPresence(ByteBuffer in) throws IOException {
+        List<String> hosts = readStrings(in);
+        int count = readVarInt(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Invalid list length in frame:  " + count);
+        }
+        List<UserStatus> statuses = new ArrayList<>(count);
+        long since = 0;
+        for (int i = 0; i < count; i++) {
+            String user = readString(in);
+            String hostname = readHost(in, hosts);
+            String address = readHost(in, hosts);
+            since += readVarLong(in);
+            OnlineStatus status = STATUSES[readOrdinal(in, STATUSES.length)];
+            statuses.add(new UserStatus(user, hostname, address, since, status, readString(in)));
+        }
+        return statuses;
+    }
+
+    /**
+     * Reads the index of a hostname or address in a presence list's table of them.
+     * @param in the buffer to read from.
+     * @param hosts the table.
+     * @return the hostname or address.
+     * @throws IOException if the index is out of range.
+     */
+    private static String readHost(ByteBuffer in, List<String> hosts) throws IOException {
+        int host = readVarInt(in);
+        if (host < 0 || host >= hosts.size()) {
+            throw new IOException("Invalid hostname index in frame:  " + host);
+        }
+        return hosts.get(host);
+    }
+
+    /**
+     * Reads a variable length long, seven bits per byte, low bits first.
+     * @param in the buffer to read from.
+     * @return the long.
+     * @throws IOException if the long is longer than ten bytes.
+     */
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in frame.");
+    }
+
+    /** A growable buffer a frame is encoded into, with room reserved up front for the length header. */
+    private static class FrameWriter {
+
+        /** The frame bytes. */
+        private byte[] m_buf = new byte[64];
+
+        /** The number of bytes written, including the reserved header. */
+        private int m_size = HEADER_BYTES;
+
+        /**
+         * Makes sure there is room for the supplied number of additional bytes.
+         * @param bytes the number of bytes about to be written.
+         */
+        private void ensure(int bytes) {
+            if (m_size + bytes > m_buf.length) {
+                m_buf = Arrays.copyOf(m_buf, Math.max(m_buf.length * 2, m_size + bytes));
+            }
+        }
+
+        /**
+         * Writes the low eight bits of the supplied value.
+         * @param value the value to write.
+         */
+        void writeByte(int value) {
+            ensure(1);
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a big-endian eight byte value.
+         * @param value the value to write.
+         */
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                m_buf[m_size++] = (byte) (value >>> shift);
+            }
+        }
+
+        /**
+         * Writes a non-negative integer, seven bits per byte, low bits first.
+         * @param value the value to write.
+         */
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                m_buf[m_size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a long, seven bits per byte, low bits first.  Negative values take ten bytes.
+         * @param value the value to write.
+         */
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                m_buf[m_size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            m_buf[m_size++] = (byte) value;
+        }
+
+        /**
+         * Writes a string as its UTF-8 length plus one followed by its bytes, or a single zero for null.
+         * @param str the string to write, may be null.
+         */
+        void writeString(String str) {
+            if (str == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, m_buf, m_size, bytes.length);
+            m_size += bytes.length;
+        }
+
+        /**
+         * Fills in the length header and returns the finished frame.
+         * @return the finished frame.
+         */
+        byte[] toFrame() {
+            int length = m_size - HEADER_BYTES;
+            m_buf[0] = (byte) (length >>> 24);
+            m_buf[1] = (byte) (length >>> 16);
+            m_buf[2] = (byte) (length >>> 8);
+            m_buf[3] = (byte) length;
+            return m_size == m_buf.length ? m_buf : Arrays.copyOf(m_buf, m_size);
+        }
+    }
+}
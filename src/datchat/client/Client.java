@@ -1,11 +1,19 @@
 package datchat.client;
 
+import datchat.ChatLine;
 import datchat.ChatMessage;
+import datchat.DirectMessage;
+import datchat.HistoryPage;
 import datchat.MessageType;
+import datchat.Presence;
+import datchat.SearchResults;
 import datchat.UserStatus;
+import datchat.WireCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
@@ -18,10 +26,10 @@ import java.net.Socket;
 public class Client {
 
     /** To read from the socket. */
-    private ObjectInputStream m_sInput;
+    private DataInputStream m_sInput;
     
     /** To write on the socket. */
-    private ObjectOutputStream m_sOutput;
+    private DataOutputStream m_sOutput;
     
     /** The socket connection to the server. */
     private Socket m_socket;
@@ -76,8 +84,8 @@ public class Client {
 
         /* Creating both Data Stream */
         try {
-            m_sInput = new ObjectInputStream(m_socket.getInputStream());
-            m_sOutput = new ObjectOutputStream(m_socket.getOutputStream());
+            m_sInput = new DataInputStream(new BufferedInputStream(m_socket.getInputStream()));
+            m_sOutput = new DataOutputStream(new BufferedOutputStream(m_socket.getOutputStream()));
         } catch (IOException eIO) {
             display(" - Exception creating new Input/output Streams: " + eIO);
             return false;
@@ -87,7 +95,7 @@ public class Client {
         new ListenFromServer().start();
         // Send our username to the server 
         try {
-            m_sOutput.writeObject(m_username);
+            WireCodec.writeFrame(m_sOutput, new ChatMessage(MessageType.LOGIN, m_username));
         } catch (IOException eIO) {
             display(" - Exception doing login : " + eIO);
             disconnect();
@@ -113,9 +121,9 @@ public class Client {
      * Sends the supplied message to the server.
      * @param msg the message to send.
      */
-    void sendMessage(ChatMessage msg) {
+    synchronized void sendMessage(ChatMessage msg) {
         try {
-            m_sOutput.writeObject(msg);
+            WireCodec.writeFrame(m_sOutput, msg);
         } catch (IOException e) {
             display(" - Exception writing to server: " + e);
         }
@@ -154,7 +162,7 @@ public class Client {
         public void run() {
             while (true) {
                 try {
-                    ChatMessage cm = (ChatMessage)m_sInput.readObject();
+                    ChatMessage cm = WireCodec.readFrame(m_sInput);
                     MessageType type = cm.getType();
                     
                     // The client will switch here on message type, using that information to figure out what
@@ -163,12 +171,46 @@ public class Client {
                     // Listener should not operate on ChatMessages - the message payloads should be extracted here 
                     // and appropriate type sbe used for the APIs of these objects.
                     switch(type) {
-                        case CHAT_MESSAGE:
-                            String msg = (String)cm.getMessage();
+                        case CHAT_LINE:
+                            ChatLine line = (ChatLine)cm.getMessage();
                             if (m_listener == null) {
-                                System.out.println("> " + msg);
+                                System.out.println("> " + line.toString());
+                            } else if (line.room == null) {
+                                m_listener.showMessage(line.render());
                             } else {
-                                m_listener.showMessage(msg);
+                                m_listener.showRoomMessage(line.room, line.render());
+                            }
+                            break;
+                        case DIRECT_MESSAGE:
+                            DirectMessage direct = (DirectMessage)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + direct.toString());
+                            } else {
+                                m_listener.showDirectMessage(direct.from, direct.to, ChatLine.render(direct.time, direct.from, direct.text));
+                            }
+                            break;
+                        case ERROR:
+                            String error = (String)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + error);
+                            } else {
+                                m_listener.showError(error);
+                            }
+                            break;
+                        case SEARCH_RESULTS:
+                            SearchResults results = (SearchResults)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + results.toString());
+                            } else {
+                                m_listener.showSearchResults(results.query, results.page, results.totalHits, results.hits);
+                            }
+                            break;
+                        case HISTORY_PAGE:
+                            HistoryPage history = (HistoryPage)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + history.toString());
+                            } else {
+                                m_listener.showHistory(history.cursor, history.more, history.lines);
                             }
                             break;
                         case LOGOUT:
@@ -181,6 +223,27 @@ public class Client {
                                 m_listener.updateStatus(status);
                             }
                             break;
+                        case PRESENCE_SNAPSHOT:
+                            Presence presence = (Presence)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + presence.toString());
+                            } else {
+                                m_listener.showPresence(presence.statuses);
+                            }
+                            break;
+                        case PING:
+                            sendMessage(new ChatMessage(MessageType.PONG, null));
+                            break;
+                        case PONG:
+                            break;
+                        case PRESENCE_DELTA:
+                            Presence delta = (Presence)cm.getMessage();
+                            if (m_listener == null) {
+                                System.out.println("> " + delta.toString());
+                            } else {
+                                m_listener.updatePresence(delta.statuses);
+                            }
+                            break;
                         default:
                             String errMsg = "Received unknown message type:  " + type + ", with message payloiad:  " + cm.getMessage();
                             if (m_listener == null) {
@@ -195,9 +258,6 @@ public class Client {
                         m_listener.connectionFailed();
                     }
                     break;
-                } catch (ClassNotFoundException ex) {
-                    // This should never happen.
-                    ex.printStackTrace();
                 }
             }
         }
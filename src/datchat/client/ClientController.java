@@ -2,6 +2,7 @@ package datchat.client;
 
 import datchat.ChatMessage;
 import datchat.UserStatus;
+import java.util.List;
 
 /**
  * A controller for connecting clients and client displays.
@@ -46,10 +47,45 @@ public class ClientController implements ClientDisplayListener, ClientListener {
         m_display.showMessage(msg);
     }
     
+    @Override
+    public void showRoomMessage(String room, String msg) {
+        m_display.showRoomMessage(room, msg);
+    }
+    
+    @Override
+    public void showDirectMessage(String from, String to, String msg) {
+        m_display.showDirectMessage(from, to, msg);
+    }
+    
+    @Override
+    public void showError(String error) {
+        m_display.showMessage(" - " + error);
+    }
+    
+    @Override
+    public void showSearchResults(String query, int page, int totalHits, List<String> hits) {
+        m_display.showSearchResults(query, page, totalHits, hits);
+    }
+    
+    @Override
+    public void showHistory(long cursor, boolean more, List<String> lines) {
+        m_display.showHistory(cursor, more, lines);
+    }
+    
     @Override
     public void updateStatus(UserStatus userStat) {
         m_display.updateUserStatus(userStat);
     }
+    
+    @Override
+    public void showPresence(List<UserStatus> statuses) {
+        m_display.setUserStatuses(statuses);
+    }
+
+    @Override
+    public void updatePresence(List<UserStatus> statuses) {
+        m_display.updateUserStatuses(statuses);
+    }
 
     @Override
     public void connectionFailed() {
@@ -3,8 +3,13 @@ package datchat.client;
 import datchat.UserStatus;
 import datchat.ChatMessage;
 import datchat.Datchat;
+import datchat.DirectMessage;
+import datchat.HistoryRequest;
 import datchat.MessageType;
 import datchat.OnlineStatus;
+import datchat.RoomMessage;
+import datchat.ScrollbackDocument;
+import datchat.SearchRequest;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -15,12 +20,20 @@ import java.awt.Insets;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -30,8 +43,12 @@ import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JScrollBar;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.plaf.metal.MetalLookAndFeel;
 
 
@@ -68,6 +85,51 @@ public class ClientDisplay {
     private SortableListModel<UserStatus> m_userListModel;
     private JList<UserStatus> m_userList;
 
+    /** The query of the last search, for fetching more of its results. */
+    private String m_lastSearch;
+
+    /** The page of the last search results shown. */
+    private int m_lastSearchPage;
+
+    /** The number of lines of earlier history asked for each time the user scrolls to the top. */
+    private static final int HISTORY_PAGE_LINES = 50;
+
+    /** The most lines kept in the chat text area, set with the datchat.client.scrollbackLines system property. */
+    private static final int SCROLLBACK_LINES = Integer.getInteger("datchat.client.scrollbackLines", Datchat.DEFAULT_SCROLLBACK_LINES);
+
+    /** The most characters kept in the chat text area, set with the datchat.client.scrollbackChars system property. */
+    private static final int SCROLLBACK_CHARS = Integer.getInteger("datchat.client.scrollbackChars", Datchat.DEFAULT_SCROLLBACK_CHARS);
+
+    /** The offset in the chat text area where this session's chat starts, earlier history is inserted here. */
+    private int m_historyAnchor;
+
+    /** The archive cursor of the oldest page of history shown, zero until a page has been loaded. */
+    private long m_historyCursor;
+
+    /** True if the server may have older history than has been shown. */
+    private boolean m_historyMore;
+
+    /** True while a page of history has been asked for and not yet shown. */
+    private boolean m_historyLoading;
+
+    /** The most times a second incoming chat is drawn, set with the datchat.client.maxFps system property. */
+    private static final int MAX_FPS = Math.max(1, Integer.getInteger("datchat.client.maxFps", 60));
+
+    /** Chat lines waiting to be drawn, added from any thread and drained on the event dispatch thread. */
+    private final Queue<String> m_incoming = new ConcurrentLinkedQueue<>();
+
+    /** Set while a frame has been asked for and not yet drawn, so a burst of lines asks the EDT for one frame. */
+    private final AtomicBoolean m_frameRequested = new AtomicBoolean();
+
+    /** Draws a frame held back to keep to the frame cap, only touched on the event dispatch thread. */
+    private final Timer m_frameTimer;
+
+    /** When the last frame was drawn, in nanoseconds, only touched on the event dispatch thread. */
+    private long m_lastFrameNanos;
+
+    /** The members of each room this user has joined, by room name. */
+    private final Map<String, Set<String>> m_roomMembers = new ConcurrentHashMap<>();
+
     /** */
     private boolean m_connected;
 
@@ -101,6 +163,8 @@ public class ClientDisplay {
      */
     public ClientDisplay(String host, int port, String user) {
         m_listeners = new ArrayList<>();
+        m_frameTimer = new Timer(0, (ActionEvent ae) -> drawFrame());
+        m_frameTimer.setRepeats(false);
 
         // CREATE COMPONENTS FOR SERVER CONFIGURATION PANEL
         // Username
@@ -164,14 +228,38 @@ public class ClientDisplay {
 
         // CONFIGURE COMPONENTS FOR CHAT ROOM TEXT AREA
         JPanel chatArea = new JPanel(new BorderLayout());
-        m_chatArea = new JTextArea("//datchat area\n", 20, 20);
+        m_chatArea = new JTextArea(new ScrollbackDocument(SCROLLBACK_LINES, SCROLLBACK_CHARS), "//datchat area\n", 20, 20);
         m_chatArea.setWrapStyleWord(true);
         m_chatArea.setLineWrap(true);
         m_chatArea.setFont(FONT);
         m_chatArea.setEditable(false);
+        // Old lines trimmed from the top move this session's chat up, keep the history anchor on it.
+        m_chatArea.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void removeUpdate(DocumentEvent de) {
+                if (de.getOffset() < m_historyAnchor) {
+                    m_historyAnchor -= Math.min(de.getLength(), m_historyAnchor - de.getOffset());
+                }
+            }
+
+            @Override
+            public void insertUpdate(DocumentEvent de) {
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent de) {
+            }
+        });
         JScrollPane chatScrollPane = new JScrollPane(m_chatArea);
         chatScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         chatScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        // Load earlier history lazily, a page at a time, as the user scrolls to the top.
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener((AdjustmentEvent ae) -> {
+            JScrollBar bar = (JScrollBar) ae.getAdjustable();
+            if (ae.getValue() == bar.getMinimum() && !ae.getValueIsAdjusting()) {
+                requestHistory();
+            }
+        });
         // CREATE CONTROL PANEL (input area)
         JPanel controls = createControlPanel();
         chatArea.add(serverConfigPanel, BorderLayout.NORTH);
@@ -293,6 +381,7 @@ public class ClientDisplay {
                         return;
                     }
 
+                    m_historyAnchor = m_chatArea.getDocument().getLength();
                     for (ClientDisplayListener cdl : m_listeners) {
                         boolean connected = cdl.connect(server, port, username);
                         if (!connected) {
@@ -322,7 +411,8 @@ public class ClientDisplay {
             JLabel cell = new JLabel(e.user);
             cell.setFont(FONT);
             cell.setHorizontalAlignment(JLabel.LEFT);
-            cell.setToolTipText("connected since " + Datchat.CHAT_DATE_FORMATTER.format(e.sinceTime) + " on host " + e.hostname + ".");
+            cell.setToolTipText("connected since " + Datchat.CHAT_DATE_FORMATTER.format(e.sinceTime) + " on host " + e.hostname
+                    + (e.hostname.equals(e.address) ? "" : " (" + e.address + ")") + roomsOf(e.user) + ".");
             
             Color deselectedBackground = cell.getBackground();
             Color deselectedTextColor = cell.getForeground();
@@ -352,11 +442,10 @@ public class ClientDisplay {
             @Override
             public void actionPerformed(ActionEvent ae) {
                 if (m_connected) {
-                    for (ClientDisplayListener cdl : m_listeners) {
-                        String chatText = m_chatTextField.getText().trim();
-                        if (!"".equals(chatText)) {
-                            cdl.sendMessage(new ChatMessage(MessageType.CHAT_MESSAGE, m_chatTextField.getText()));
-                        }
+                    String chatText = m_chatTextField.getText().trim();
+                    ChatMessage msg = "".equals(chatText) ? null : parseInput(m_chatTextField.getText());
+                    if (msg != null) {
+                        fireSendMessage(msg);
                     }
                     m_chatTextField.setText("");
                 }
@@ -371,24 +460,209 @@ public class ClientDisplay {
     }
 
     /**
-     * Shows the new text in the chat text area.  This method automatically appends a new line.
+     * Asks the listeners to send a message to the server.
+     * @param msg the message to send.
+     */
+    private void fireSendMessage(ChatMessage msg) {
+        for (ClientDisplayListener cdl : m_listeners) {
+            cdl.sendMessage(msg);
+        }
+    }
+
+    /** Asks the server for the page of history before the oldest line shown, unless one is already on its way. */
+    private void requestHistory() {
+        if (!m_connected || !m_historyMore || m_historyLoading) {
+            return;
+        }
+        m_historyLoading = true;
+        fireSendMessage(new ChatMessage(MessageType.HISTORY_REQUEST, new HistoryRequest(m_historyCursor, HISTORY_PAGE_LINES)));
+    }
+
+    /**
+     * Turns a line typed by the user into the message to send.  Lines starting with a slash are commands:
+     * /join room, /leave room, /room room text, /msg user text, /search words and /more (the next page of the last
+     * search).  Anything else is a chat message to everyone.
+     * @param text the line typed by the user.
+     * @return the message to send, or null if the line was an invalid command.
+     */
+    private ChatMessage parseInput(String text) {
+        if (!text.startsWith("/")) {
+            return new ChatMessage(MessageType.CHAT_MESSAGE, text);
+        }
+        String[] parts = text.trim().split("\\s+", 3);
+        String command = parts[0].toLowerCase();
+        if ("/join".equals(command) && parts.length == 2) {
+            return new ChatMessage(MessageType.JOIN_ROOM, parts[1]);
+        } else if ("/leave".equals(command) && parts.length == 2) {
+            return new ChatMessage(MessageType.LEAVE_ROOM, parts[1]);
+        } else if ("/room".equals(command) && parts.length == 3) {
+            return new ChatMessage(MessageType.ROOM_MESSAGE, new RoomMessage(parts[1], parts[2]));
+        } else if ("/msg".equals(command) && parts.length == 3) {
+            return new ChatMessage(MessageType.DIRECT_MESSAGE, new DirectMessage(null, parts[1], parts[2]));
+        } else if ("/search".equals(command) && parts.length > 1) {
+            m_lastSearch = text.trim().substring(command.length()).trim();
+            return new ChatMessage(MessageType.SEARCH, new SearchRequest(m_lastSearch, 0));
+        } else if ("/more".equals(command) && parts.length == 1 && m_lastSearch != null) {
+            return new ChatMessage(MessageType.SEARCH, new SearchRequest(m_lastSearch, m_lastSearchPage + 1));
+        }
+        showMessage(" - Commands are /join room, /leave room, /room room message, /msg user message, /search words and /more.");
+        return null;
+    }
+
+    /**
+     * Returns a description of the rooms the supplied user shares with this user, for the user list tooltip.
+     * @param user the user to describe.
+     * @return the rooms the user is in, or an empty string if none.
+     */
+    private String roomsOf(String user) {
+        StringBuilder rooms = new StringBuilder();
+        m_roomMembers.forEach((room, members) -> {
+            if (members.contains(user)) {
+                rooms.append(rooms.length() == 0 ? ", in " : " ").append("#").append(room);
+            }
+        });
+        return rooms.toString();
+    }
+
+    /**
+     * Shows a message posted to a room in the chat text area.
+     * @param room the room the message was posted to.
      * @param msg the message to show.
      */
-    public void showMessage(String msg) {
-        m_chatArea.append(msg);
-        m_chatArea.append(System.lineSeparator());
+    public void showRoomMessage(String room, String msg) {
+        showMessage("#" + room + "  " + msg);
+    }
+
+    /**
+     * Shows a page of chat archive search results in the chat text area, oldest first so they read like the chat.
+     * @param query the query the results are for.
+     * @param page the page of results.
+     * @param totalHits the number of matching lines in the whole archive.
+     * @param hits the matching lines on this page, newest first.
+     */
+    public void showSearchResults(String query, int page, int totalHits, List<String> hits) {
+        // The page is read by /more on the event dispatch thread, so it is recorded there too.
         SwingUtilities.invokeLater(() -> {
-            m_chatArea.setCaretPosition(m_chatArea.getText().length() - 1);
+            m_lastSearchPage = page;
+            if (hits.isEmpty()) {
+                showMessage(" - Search for '" + query + "' found " + (totalHits == 0 ? "nothing." : "no more lines."));
+                return;
+            }
+            showMessage(" - Search for '" + query + "' found " + totalHits + " lines, page " + (page + 1)
+                    + " (/more for older ones):");
+            for (int i = hits.size() - 1; i >= 0; i--) {
+                showMessage("   " + hits.get(i));
+            }
         });
-        
+    }
+
+    /**
+     * Inserts a page of earlier history above this session's chat, keeping the lines the user was looking at in view.
+     * @param cursor where the page starts in the server's archive.
+     * @param more true if the server has older history still.
+     * @param lines the lines, oldest first.
+     */
+    public void showHistory(long cursor, boolean more, List<String> lines) {
+        SwingUtilities.invokeLater(() -> {
+            m_historyCursor = cursor;
+            m_historyMore = more;
+            m_historyLoading = false;
+            if (lines.isEmpty()) {
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            for (String line : lines) {
+                text.append(line).append(System.lineSeparator());
+            }
+            m_chatArea.insert(text.toString(), m_historyAnchor);
+            m_chatArea.setCaretPosition(m_historyAnchor + text.length());
+        });
+    }
+
+    /**
+     * Shows a private message in the chat text area.
+     * @param from the user who sent the message.
+     * @param to the user the message was sent to.
+     * @param msg the message to show.
+     */
+    public void showDirectMessage(String from, String to, String msg) {
+        showMessage("@" + from + " -> @" + to + "  " + msg);
+    }
+
+    /**
+     * Shows the new text in the chat text area.  This method automatically appends a new line.  Safe to call from any
+     * thread:  the line is queued and drawn with any others that arrive before the next frame.
+     * @param msg the message to show.
+     */
+    public void showMessage(String msg) {
+        m_incoming.add(msg);
+        if (m_frameRequested.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleFrame);
+        }
+    }
+
+    /** Draws the next frame now, or once the frame interval since the last has passed. */
+    private void scheduleFrame() {
+        long wait = m_lastFrameNanos + TimeUnit.SECONDS.toNanos(1) / MAX_FPS - System.nanoTime();
+        if (wait <= 0) {
+            drawFrame();
+        } else if (!m_frameTimer.isRunning()) {
+            m_frameTimer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            m_frameTimer.start();
+        }
+    }
+
+    /** Appends every queued line to the chat text area as one edit, and scrolls to the end once. */
+    private void drawFrame() {
+        // Cleared first, so a line queued while this frame is drawn asks for another.
+        m_frameRequested.set(false);
+        m_frameTimer.stop();
+        m_lastFrameNanos = System.nanoTime();
+        StringBuilder text = new StringBuilder();
+        String line;
+        while ((line = m_incoming.poll()) != null) {
+            text.append(line).append(System.lineSeparator());
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        m_chatArea.append(text.toString());
+        m_chatArea.setCaretPosition(m_chatArea.getDocument().getLength());
+
         // Start Blinking Icon.
         m_blinkIcon = true;
     }
     
     void updateUserStatus(UserStatus userStat) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> updateUserStatus(userStat));
+            return;
+        }
+
+        // Room presence is tracked per room, apart from the server-wide user list.
+        if (userStat.room != null) {
+            if (userStat.status == OnlineStatus.ONLINE) {
+                m_roomMembers.computeIfAbsent(userStat.room, (r) -> ConcurrentHashMap.newKeySet()).add(userStat.user);
+            } else if (userStat.user.equals(m_usernameField.getText().trim())) {
+                // We left the room, forget everyone in it.
+                m_roomMembers.remove(userStat.room);
+            } else {
+                m_roomMembers.computeIfPresent(userStat.room, (r, members) -> {
+                    members.remove(userStat.user);
+                    return members;
+                });
+            }
+            return;
+        }
+
+        // Going offline from the server leaves every room.
+        if (userStat.status == OnlineStatus.OFFLINE) {
+            m_roomMembers.values().forEach((members) -> members.remove(userStat.user));
+        }
+
         // Remove the old status...
         for (UserStatus us : m_userListModel.getAllElements()) {
-            if (us.isSameUser(userStat.user, userStat.hostname)) {
+            if (us.isSameUser(userStat.user, userStat.address)) {
                 m_userListModel.removeElement(us);
                 break;
             }
@@ -404,7 +678,66 @@ public class ClientDisplay {
     }
 
 
+    /**
+     * Replaces the user list with a snapshot of everyone online, in one update rather than one sorted insert per user.
+     * @param statuses the statuses of the users online.
+     */
+    void setUserStatuses(List<UserStatus> statuses) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> setUserStatuses(statuses));
+            return;
+        }
+
+        // Keep one entry per user and address, as updateUserStatus does.
+        Map<String, UserStatus> online = new LinkedHashMap<>();
+        for (UserStatus status : statuses) {
+            if (status.status == OnlineStatus.ONLINE && status.room == null) {
+                online.put(status.getUserKey(), status);
+            }
+        }
+        m_userListModel.setAllElements(online.values());
+
+        // Start Blinking Icon.
+        m_blinkIcon = true;
+    }
+
+    /**
+     * Applies the users who have come and gone over the server's last presence window to the user list, in one update
+     * rather than one sorted insert or removal per user.
+     * @param statuses the changed server-wide statuses.
+     */
+    void updateUserStatuses(List<UserStatus> statuses) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> updateUserStatuses(statuses));
+            return;
+        }
+
+        Map<String, UserStatus> online = new LinkedHashMap<>();
+        for (UserStatus us : m_userListModel.getAllElements()) {
+            online.put(us.getUserKey(), us);
+        }
+        for (UserStatus status : statuses) {
+            String key = status.getUserKey();
+            if (status.status == OnlineStatus.ONLINE) {
+                online.put(key, status);
+            } else {
+                // Going offline from the server leaves every room.
+                online.remove(key);
+                m_roomMembers.values().forEach((members) -> members.remove(status.user));
+            }
+        }
+        m_userListModel.setAllElements(online.values());
+
+        // Start Blinking Icon.
+        m_blinkIcon = true;
+    }
+
     public void connectionFailed() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(this::connectionFailed);
+            return;
+        }
+
         // Re-Enable Login, Username and Server.
         m_usernameField.setEnabled(true);
         m_serverHostField.setEnabled(true);
@@ -420,8 +753,9 @@ public class ClientDisplay {
         m_connected = false;
         m_loginoutButton.setText("Login");
         
-        // Clear Userlist
+        // Clear Userlist and rooms
         m_userListModel.clear();
+        m_roomMembers.clear();
         
         // Start Blinking Icon.
         m_blinkIcon = true;
@@ -429,6 +763,9 @@ public class ClientDisplay {
 
     public void connectionEstablished() {
         m_connected = true;
+        m_historyCursor = 0;
+        m_historyMore = true;
+        m_historyLoading = false;
         m_loginoutButton.setText("Logout");
 
         // disable login button and username field
@@ -1,6 +1,7 @@
 package datchat.client;
 
 import datchat.UserStatus;
+import java.util.List;
 
 /**
  * 
@@ -10,7 +11,21 @@ public interface ClientListener {
     
     public void showMessage(String msg);
     
+    public void showRoomMessage(String room, String msg);
+    
+    public void showDirectMessage(String from, String to, String msg);
+    
+    public void showError(String error);
+    
+    public void showSearchResults(String query, int page, int totalHits, List<String> hits);
+    
+    public void showHistory(long cursor, boolean more, List<String> lines);
+    
     public void updateStatus(UserStatus userStat);
     
+    public void showPresence(List<UserStatus> statuses);
+    
+    public void updatePresence(List<UserStatus> statuses);
+    
     public void connectionFailed();
 }
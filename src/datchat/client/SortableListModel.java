@@ -82,6 +82,35 @@ public class SortableListModel<E extends Comparable> extends AbstractListModel<E
         fireContentsChanged(this, 0, m_items.size());
     }
 
+    /**
+     * Replaces every item in this model, sorting once and firing a single update rather than one per item.
+     * @param items the new items.
+     */
+    // E is bounded by the raw Comparable, so its natural ordering can only be reached through an unchecked sort.
+    @SuppressWarnings("unchecked")
+    public void setAllElements(Collection<E> items) {
+        int oldSize = m_items.size();
+        m_items.clear();
+        m_filteredItems.clear();
+        m_items.addAll(items);
+        if (m_sort) {
+            if (m_comparator != null) {
+                Collections.sort(m_items, m_comparator);
+            } else {
+                Collections.sort(m_items);
+            }
+        }
+        int newSize = m_items.size();
+        if (oldSize > newSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+        if (Math.min(oldSize, newSize) > 0) {
+            fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+        }
+    }
+
     /**
      * Adds an element to this model and fires necessary events to update the UI.
      * @param e the Element to add.
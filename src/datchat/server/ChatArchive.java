@@ -0,0 +1,33 @@
+package datchat.server;
+
+import datchat.HistoryPage;
+import datchat.SearchResults;
+import java.io.IOException;
+
+/**
+ * A searchable archive of the chat room, the server answers clients' SEARCH and HISTORY_REQUEST requests from it.
+ * @author adam
+ */
+public interface ChatArchive {
+
+    /**
+     * Returns one page of the archived chat lines containing every word in the query, newest first.
+     * @param query the words to search for.
+     * @param page the page wanted, zero for the newest matches.
+     * @param pageSize the number of lines per page.
+     * @return the page of results.
+     * @throws IOException if the archive could not be read.
+     */
+    public SearchResults search(String query, int page, int pageSize) throws IOException;
+
+    /**
+     * Returns the archived chat lines posted to the whole server before both a cursor and a point in time, oldest
+     * first.
+     * @param before the cursor of a page already returned to page back from, Long.MAX_VALUE to page back by time alone.
+     * @param beforeTime the epoch milliseconds to page back from (exclusive).
+     * @param limit the most lines wanted.
+     * @return the page of history.
+     * @throws IOException if the archive could not be read.
+     */
+    public HistoryPage history(long before, long beforeTime, int limit) throws IOException;
+}
@@ -0,0 +1,915 @@
+package datchat.server;
+
+import datchat.Datchat;
+import datchat.HistoryPage;
+import datchat.SearchResults;
+import datchat.WireCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An inverted index over the chat logs in a directory, mapping every word to the positions of the lines containing
+ * it.  Lines are indexed as they are written (the index listens to the chat journal), and the index is saved to a
+ * snapshot file periodically and when it is closed, so an unclean shutdown leaves at most one period of logs to
+ * index again.  On opening, the snapshot is loaded and any log lines written after it was taken
+ * are indexed, and if there is no usable snapshot the whole archive is indexed from the logs.  Old single-file chat
+ * logs written before the journal existed are indexed too.  Lines posted to rooms are left out of the word index, a
+ * search is open to every client and rooms are only open to their members.
+ * <p>
+ * A position is the index of the log file in the file table and the byte offset of the line within it, packed into a
+ * long, so each word's positions are kept in ascending order in a growable array and an AND query is a merge of
+ * sorted arrays.  Only the log being written has its words in the heap, once a log is complete (the journal has moved
+ * on to the next segment, or the server restarted) its words are written to a {@link SegmentIndex} file beside it and
+ * dropped from the heap.  A search merges the matches from the heap with those read from each complete log's index
+ * file.  The matching lines themselves are read back from the logs, one page at a time.
+ * <p>
+ * Alongside the words, a sparse time index records the timestamp and position of every 32nd timestamped line, so a
+ * page of history before a point in time is a binary search, a seek and a read of a bounded number of lines, however
+ * long the archive.
+ * @author adam
+ */
+class ChatIndex implements ChatJournal.RecordListener {
+
+    /** Identifies a snapshot file. */
+    private static final int SNAPSHOT_MAGIC = 0x44434958;
+
+    /** The snapshot file format version. */
+    private static final int SNAPSHOT_VERSION = 4;
+
+    /** The name of the snapshot file within the log directory. */
+    static final String SNAPSHOT_NAME = "dat-chat.idx";
+
+    /** The pattern chat log files match within the log directory. */
+    private static final String LOG_GLOB = "*-dat-chat.log";
+
+    /** The number of bits of a position holding the byte offset, the rest hold the file. */
+    private static final int OFFSET_BITS = 40;
+
+    /** The most bytes of lines a page of results or history holds, so the page always fits in one frame. */
+    private static final int PAGE_BYTES = WireCodec.MAX_PAYLOAD_BYTES / 2;
+
+    /** The longest word indexed, longer words are cut short. */
+    private static final int MAX_TERM_CHARS = 32;
+
+    /** The number of timestamped lines between entries in the sparse time index. */
+    private static final int SPARSE_INTERVAL = 32;
+
+    /** The directory holding the chat logs and the snapshot. */
+    private final Path m_directory;
+
+    /** Guards everything below, a lock rather than synchronized so virtual threads never pin. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** The names of the indexed log files, a file's index in this list is its file number. */
+    private final List<String> m_files = new ArrayList<>();
+
+    /** File numbers by file name. */
+    private final Map<String, Integer> m_fileNumbers = new HashMap<>();
+
+    /** The number of bytes of each file that have been indexed, by file number. */
+    private final List<Long> m_indexedBytes = new ArrayList<>();
+
+    /** Line positions by word, for the logs whose words are not yet in their own index file. */
+    private final Map<String, Postings> m_postings = new HashMap<>();
+
+    /** The file numbers of the logs whose words are in their own index file. */
+    private final BitSet m_sealed = new BitSet();
+
+    /** The file number of the log last written to, or -1 before anything is written. */
+    private int m_active = -1;
+
+    /** The number of lines indexed. */
+    private long m_lines;
+
+    /** The number of lines indexed when the snapshot was last saved or loaded. */
+    private long m_savedLines = -1;
+
+    /** The timestamps of the sparse time index entries. */
+    private long[] m_sparseTimes = new long[64];
+
+    /** The positions of the sparse time index entries. */
+    private long[] m_sparsePositions = new long[64];
+
+    /** The number of sparse time index entries. */
+    private int m_sparseSize;
+
+    /** The number of timestamped lines indexed since the last sparse time index entry. */
+    private int m_sinceSparse;
+
+    /**
+     * Constructor, the index is empty until opened.
+     * @param directory the directory holding the chat logs.
+     */
+    ChatIndex(Path directory) {
+        m_directory = directory;
+    }
+
+    /**
+     * Loads the snapshot, or rebuilds the index from the logs if there is no usable snapshot, then indexes anything
+     * logged since the snapshot was taken.
+     * @throws IOException if the logs could not be read.
+     */
+    void open() throws IOException {
+        m_lock.lock();
+        try {
+            if (!loadSnapshot()) {
+                clear();
+            }
+            // Every log already in the directory is complete, the journal starts a new segment when it opens.  Each one
+            // is written to its own index file as soon as it is caught up, so only one log's words are ever in the heap.
+            for (Path log : listLogs()) {
+                int file = fileNumber(log.getFileName().toString());
+                if (!m_sealed.get(file)) {
+                    catchUp(log);
+                    seal(file);
+                }
+            }
+            sortSparse();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    @Override
+    public void recordWritten(Path segment, long offset, int length, long timestamp, String text) {
+        m_lock.lock();
+        try {
+            int file = fileNumber(segment.getFileName().toString());
+            if (file != m_active) {
+                // The journal has moved on to a new segment, the ones before it are complete.
+                sealAllBut(file);
+                m_active = file;
+            }
+            addLine(file, offset, timestamp, text);
+            m_indexedBytes.set(file, offset + length);
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns one page of the lines containing every word in the query, newest first.
+     * @param query the words to search for.
+     * @param page the page wanted, zero for the newest matches.
+     * @param pageSize the number of lines per page.
+     * @return the page of results.
+     * @throws IOException if the matching lines could not be read from the logs.
+     */
+    SearchResults search(String query, int page, int pageSize) throws IOException {
+        Set<String> terms = terms(query);
+        List<long[]> found = new ArrayList<>();
+        List<String> files;
+        BitSet sealed;
+        m_lock.lock();
+        try {
+            found.add(match(terms));
+            files = new ArrayList<>(m_files);
+            sealed = (BitSet) m_sealed.clone();
+        } finally {
+            m_lock.unlock();
+        }
+
+        // Read the complete logs' index files outside the lock, indexing carries on meanwhile.
+        int count = found.get(0).length;
+        for (int f = sealed.nextSetBit(0); f >= 0; f = sealed.nextSetBit(f + 1)) {
+            long[] offsets = SegmentIndex.match(SegmentIndex.pathFor(m_directory.resolve(files.get(f))), terms);
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] |= (long) f << OFFSET_BITS;
+            }
+            found.add(offsets);
+            count += offsets.length;
+        }
+        long[] matches = new long[count];
+        int filled = 0;
+        for (long[] positions : found) {
+            System.arraycopy(positions, 0, matches, filled, positions.length);
+            filled += positions.length;
+        }
+        Arrays.sort(matches);
+
+        // Read the page of lines.  Each hit gets an even share of the page's bytes, only very long lines from old logs
+        // ever need cutting short to fit.
+        List<String> hits = new ArrayList<>(pageSize);
+        int hitBytes = PAGE_BYTES / Math.max(1, pageSize);
+        int first = matches.length - 1 - page * pageSize;
+        Map<Integer, FileChannel> open = new HashMap<>();
+        try {
+            for (int i = first; i >= 0 && i > first - pageSize; i--) {
+                int file = (int) (matches[i] >>> OFFSET_BITS);
+                long offset = matches[i] & ((1L << OFFSET_BITS) - 1);
+                FileChannel channel = open.get(file);
+                if (channel == null) {
+                    channel = FileChannel.open(m_directory.resolve(files.get(file)), StandardOpenOption.READ);
+                    open.put(file, channel);
+                }
+                hits.add(truncate(formatHit(readLine(channel, offset)), hitBytes));
+            }
+        } finally {
+            for (FileChannel channel : open.values()) {
+                channel.close();
+            }
+        }
+        return new SearchResults(query, page, matches.length, hits);
+    }
+
+    /**
+     * Returns the newest timestamped chat lines logged before both a position and a point in time, leaving out lines
+     * posted to rooms.  Pages are chained by position, as many lines can share a millisecond.
+     * @param before the position to page back from (exclusive), the cursor of the last page returned.
+     * @param beforeTime the epoch milliseconds to page back from (exclusive).
+     * @param limit the most lines wanted.
+     * @return the lines, oldest first, with the position of the oldest as the page's cursor.
+     * @throws IOException if the lines could not be read from the logs.
+     */
+    HistoryPage history(long before, long beforeTime, int limit) throws IOException {
+        List<String> files;
+        int end;
+        long[] starts;
+        m_lock.lock();
+        try {
+            files = new ArrayList<>(m_files);
+            end = Math.min(firstSparseAtOrAfter(m_sparsePositions, before), firstSparseAtOrAfter(m_sparseTimes, beforeTime));
+            starts = Arrays.copyOf(m_sparsePositions, end);
+        } finally {
+            m_lock.unlock();
+        }
+
+        // Start far enough back for a full page, and go further back if rooms or gaps in the log leave it short.
+        Deque<String> lines = new ArrayDeque<>(limit);
+        Deque<Long> positions = new ArrayDeque<>(limit);
+        boolean[] overflowed = new boolean[1];
+        int step = limit / SPARSE_INTERVAL + 2;
+        int start = end;
+        do {
+            start = Math.max(0, start - step);
+            step *= 2;
+            lines.clear();
+            positions.clear();
+            overflowed[0] = false;
+            if (starts.length == 0) {
+                break;
+            }
+            long position = starts[start];
+            scan(files, (int) (position >>> OFFSET_BITS), position & ((1L << OFFSET_BITS) - 1), true, (f, o, line) -> {
+                long at = ((long) f << OFFSET_BITS) | o;
+                long time = recordTime(line);
+                if (at >= before) {
+                    return false;
+                }
+                if (time < 0 || recordText(line).startsWith("#")) {
+                    return true;
+                }
+                if (time >= beforeTime) {
+                    return false;
+                }
+                if (lines.size() == limit) {
+                    lines.poll();
+                    positions.poll();
+                    overflowed[0] = true;
+                }
+                lines.add(line);
+                positions.add(at);
+                return true;
+            });
+        } while (lines.size() < limit && start > 0);
+
+        // Keep the newest lines that fit in a frame, counting the most bytes each character could take, and leave the
+        // rest for the next page.
+        Deque<String> page = new ArrayDeque<>(lines.size());
+        long cursor = before;
+        int bytes = 0;
+        while (!lines.isEmpty()) {
+            String hit = truncate(formatHit(lines.pollLast()), PAGE_BYTES);
+            bytes += hit.length() * 3;
+            if (bytes > PAGE_BYTES && !page.isEmpty()) {
+                overflowed[0] = true;
+                break;
+            }
+            page.addFirst(hit);
+            cursor = positions.pollLast();
+        }
+        return new HistoryPage(cursor, !page.isEmpty() && (overflowed[0] || start > 0), new ArrayList<>(page));
+    }
+
+    /**
+     * Returns the index of the first sparse time index entry at or after a timestamp or position.
+     * @param keys the timestamps or positions of the entries.
+     * @param key the timestamp or position wanted.
+     * @return the index of the entry, or the number of entries if they are all before it.
+     */
+    private int firstSparseAtOrAfter(long[] keys, long key) {
+        int low = 0;
+        int high = m_sparseSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Saves the index to its snapshot file, replacing any earlier snapshot only once the new one is complete.
+     * @throws IOException if the snapshot could not be written.
+     */
+    void save() throws IOException {
+        m_lock.lock();
+        try {
+            Files.createDirectories(m_directory);
+            Path temp = m_directory.resolve(SNAPSHOT_NAME + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(m_lines);
+                out.writeInt(m_files.size());
+                for (int i = 0; i < m_files.size(); i++) {
+                    out.writeUTF(m_files.get(i));
+                    out.writeLong(m_indexedBytes.get(i));
+                    out.writeBoolean(m_sealed.get(i));
+                }
+                out.writeInt(m_sparseSize);
+                for (int i = 0; i < m_sparseSize; i++) {
+                    out.writeLong(m_sparseTimes[i]);
+                    out.writeLong(m_sparsePositions[i]);
+                }
+                out.writeInt(m_sinceSparse);
+                out.writeInt(m_postings.size());
+                for (Map.Entry<String, Postings> entry : m_postings.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().writeTo(out);
+                }
+            }
+            Files.move(temp, m_directory.resolve(SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            m_savedLines = m_lines;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the words of the log being written to its own index file and saves the snapshot, the journal having been
+     * closed.
+     * @throws IOException if the index file or the snapshot could not be written.
+     */
+    void close() throws IOException {
+        m_lock.lock();
+        try {
+            sealAllBut(-1);
+            save();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the index to its snapshot file if any lines have been indexed since it was last saved or loaded.
+     * @throws IOException if the snapshot could not be written.
+     */
+    void saveIfChanged() throws IOException {
+        m_lock.lock();
+        try {
+            if (m_lines != m_savedLines) {
+                save();
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of lines indexed.
+     * @return the number of lines indexed.
+     */
+    long getLines() {
+        m_lock.lock();
+        try {
+            return m_lines;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the snapshot file, if there is one and every log it covers is still at least as long as when it was taken
+     * and still has the index file the snapshot says it has.
+     * @return true if the snapshot was loaded, false if the index must be rebuilt.
+     */
+    private boolean loadSnapshot() {
+        Path snapshot = m_directory.resolve(SNAPSHOT_NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            m_lines = in.readLong();
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                String name = in.readUTF();
+                long indexed = in.readLong();
+                boolean sealed = in.readBoolean();
+                Path log = m_directory.resolve(name);
+                if (!Files.exists(log) || Files.size(log) < indexed
+                        || (sealed && SegmentIndex.coveredBytes(SegmentIndex.pathFor(log)) != indexed)) {
+                    return false;
+                }
+                m_sealed.set(m_files.size(), sealed);
+                m_fileNumbers.put(name, m_files.size());
+                m_files.add(name);
+                m_indexedBytes.add(indexed);
+            }
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                addSparse(in.readLong(), in.readLong());
+            }
+            m_sinceSparse = in.readInt();
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                m_postings.put(term, Postings.readFrom(in));
+            }
+            m_savedLines = m_lines;
+            return true;
+        } catch (NoSuchFileException missing) {
+            return false;
+        } catch (IOException ioex) {
+            System.out.println("Chat index snapshot is unreadable, rebuilding it:  " + ioex);
+            return false;
+        }
+    }
+
+    /** Empties the index. */
+    private void clear() {
+        m_files.clear();
+        m_fileNumbers.clear();
+        m_indexedBytes.clear();
+        m_postings.clear();
+        m_sealed.clear();
+        m_active = -1;
+        m_lines = 0;
+        m_sparseSize = 0;
+        m_sinceSparse = 0;
+    }
+
+    /**
+     * Returns the chat logs in the directory, oldest first.
+     * @return the chat logs.
+     * @throws IOException if the directory could not be read.
+     */
+    private List<Path> listLogs() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        if (!Files.isDirectory(m_directory)) {
+            return logs;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(m_directory, LOG_GLOB)) {
+            for (Path log : stream) {
+                logs.add(log);
+            }
+        }
+        // Log names start with the time the server started, so name order is age order.
+        Collections.sort(logs);
+        return logs;
+    }
+
+    /**
+     * Indexes the lines of a log file past the point already indexed.
+     * @param log the log file.
+     * @throws IOException if the file could not be read.
+     */
+    private void catchUp(Path log) throws IOException {
+        int file = fileNumber(log.getFileName().toString());
+        long end = scan(m_files, file, m_indexedBytes.get(file), false, (f, offset, line) -> {
+            addLine(f, offset, recordTime(line), recordText(line));
+            return true;
+        });
+        // A partial last line is picked up once it is complete.
+        m_indexedBytes.set(file, end);
+    }
+
+    /**
+     * Reads the complete lines of a log from an offset, optionally carrying on through the logs after it.
+     * @param files the log file names by file number.
+     * @param file the file number to start in.
+     * @param offset the offset to start at.
+     * @param following true to carry on through the following logs.
+     * @param visitor told about each line.
+     * @return the offset just past the last complete line read, in the last log read.
+     * @throws IOException if a log could not be read.
+     */
+    private long scan(List<String> files, int file, long offset, boolean following, LineVisitor visitor) throws IOException {
+        long position = offset;
+        for (int f = file; f < files.size(); f++) {
+            position = f == file ? offset : 0;
+            try (FileChannel channel = FileChannel.open(m_directory.resolve(files.get(f)), StandardOpenOption.READ)) {
+                channel.position(position);
+                InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+                ByteBuffer line = ByteBuffer.allocate(256);
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b != '\n') {
+                        if (!line.hasRemaining()) {
+                            line = ByteBuffer.allocate(line.capacity() * 2).put(line.flip());
+                        }
+                        line.put((byte) b);
+                        continue;
+                    }
+                    if (!visitor.visit(f, position, new String(line.array(), 0, line.position(), StandardCharsets.UTF_8))) {
+                        return position;
+                    }
+                    position += line.position() + 1;
+                    line.clear();
+                }
+            } catch (NoSuchFileException missing) {
+                // The log has been removed since it was indexed, skip it.
+            }
+            if (!following) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Writes the words of every log but one to their own index files.
+     * @param keep the file number of the log to leave in the heap, or -1 for none.
+     */
+    private void sealAllBut(int keep) {
+        for (int f = m_sealed.nextClearBit(0); f < m_files.size(); f = m_sealed.nextClearBit(f + 1)) {
+            if (f != keep) {
+                try {
+                    seal(f);
+                } catch (IOException ioex) {
+                    // The words stay in the heap and are tried again when the next segment starts or on closing.
+                    System.out.println("Error writing the index of " + m_files.get(f) + ":  " + ioex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the words of a complete log to its own index file and drops them from the heap.
+     * @param file the file number of the log.
+     * @throws IOException if the index file could not be written, the words are then left in the heap.
+     */
+    private void seal(int file) throws IOException {
+        SortedMap<String, long[]> offsets = new TreeMap<>();
+        for (Map.Entry<String, Postings> entry : m_postings.entrySet()) {
+            long[] inFile = entry.getValue().offsetsIn(file);
+            if (inFile.length > 0) {
+                offsets.put(entry.getKey(), inFile);
+            }
+        }
+        SegmentIndex.write(SegmentIndex.pathFor(m_directory.resolve(m_files.get(file))), m_indexedBytes.get(file),
+                offsets);
+        m_postings.values().removeIf((postings) -> postings.removeFile(file));
+        m_sealed.set(file);
+        // The snapshot must learn the log is sealed even if no more lines are written before the next save.
+        m_savedLines = -1;
+    }
+
+    /**
+     * Returns the file number of a log file, adding it to the file table if it is new.
+     * @param name the file name.
+     * @return the file number.
+     */
+    private int fileNumber(String name) {
+        Integer number = m_fileNumbers.get(name);
+        if (number == null) {
+            number = m_files.size();
+            m_files.add(name);
+            m_fileNumbers.put(name, number);
+            m_indexedBytes.add(0L);
+        }
+        return number;
+    }
+
+    /**
+     * Adds a line's words to the index unless it was posted to a room, and the line to the sparse time index if it is
+     * due an entry.
+     * @param file the file number of the log holding the line.
+     * @param offset the offset of the line within the log.
+     * @param timestamp the epoch milliseconds the line was logged at, negative if it has no timestamp.
+     * @param text the text of the line.
+     */
+    private void addLine(int file, long offset, long timestamp, String text) {
+        long position = ((long) file << OFFSET_BITS) | offset;
+        // Room lines start with the room name, they stay out of search as they do out of history.
+        if (!text.startsWith("#")) {
+            for (String term : terms(text)) {
+                m_postings.computeIfAbsent(term, (t) -> new Postings()).add(position);
+            }
+        }
+        m_lines++;
+        if (timestamp >= 0) {
+            if (m_sinceSparse == 0) {
+                addSparse(timestamp, position);
+            }
+            m_sinceSparse = (m_sinceSparse + 1) % SPARSE_INTERVAL;
+        }
+    }
+
+    /**
+     * Adds an entry to the sparse time index.
+     * @param timestamp the epoch milliseconds of the line.
+     * @param position the position of the line.
+     */
+    private void addSparse(long timestamp, long position) {
+        if (m_sparseSize == m_sparseTimes.length) {
+            m_sparseTimes = Arrays.copyOf(m_sparseTimes, m_sparseSize * 2);
+            m_sparsePositions = Arrays.copyOf(m_sparsePositions, m_sparseSize * 2);
+        }
+        m_sparseTimes[m_sparseSize] = timestamp;
+        m_sparsePositions[m_sparseSize] = position;
+        m_sparseSize++;
+    }
+
+    /** Puts the sparse time index back in log order after catching up older logs. */
+    private void sortSparse() {
+        Integer[] order = new Integer[m_sparseSize];
+        for (int i = 0; i < m_sparseSize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> m_sparsePositions[i]));
+        long[] times = new long[m_sparseTimes.length];
+        long[] positions = new long[m_sparsePositions.length];
+        for (int i = 0; i < m_sparseSize; i++) {
+            times[i] = m_sparseTimes[order[i]];
+            positions[i] = m_sparsePositions[order[i]];
+        }
+        m_sparseTimes = times;
+        m_sparsePositions = positions;
+    }
+
+    /**
+     * Returns the positions of the lines containing every one of the supplied words, in ascending order.
+     * @param terms the words.
+     * @return the matching positions.
+     */
+    private long[] match(Set<String> terms) {
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        List<long[]> lists = new ArrayList<>();
+        for (String term : terms) {
+            Postings postings = m_postings.get(term);
+            if (postings == null) {
+                return new long[0];
+            }
+            lists.add(Arrays.copyOf(postings.positions, postings.size));
+        }
+        return SegmentIndex.intersect(lists);
+    }
+
+    /**
+     * Splits text into its distinct, lower case words.
+     * @param text the text to split.
+     * @return the words.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = text.substring(start, Math.min(i, start + MAX_TERM_CHARS)).toLowerCase();
+                terms.add(term);
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the timestamp of a log line.  Lines from before the journal have no timestamp.
+     * @param line the log line.
+     * @return the epoch milliseconds the line was logged at, or -1 if it has no timestamp.
+     */
+    private static long recordTime(String line) {
+        int tab = line.indexOf('\t');
+        return tab > 0 && isDigits(line, tab) ? Long.parseLong(line.substring(0, tab)) : -1;
+    }
+
+    /**
+     * Returns the text of a log line without its timestamp.  Lines from before the journal have no timestamp.
+     * @param line the log line.
+     * @return the text.
+     */
+    private static String recordText(String line) {
+        int tab = line.indexOf('\t');
+        return tab > 0 && isDigits(line, tab) ? line.substring(tab + 1) : line;
+    }
+
+    /**
+     * Formats a log line for display as a search hit, with its date in place of its epoch timestamp.
+     * @param line the log line.
+     * @return the formatted hit.
+     */
+    private static String formatHit(String line) {
+        int tab = line.indexOf('\t');
+        if (tab > 0 && isDigits(line, tab)) {
+            long timestamp = Long.parseLong(line.substring(0, tab));
+            return Datchat.CHAT_DATE_FORMATTER.format(timestamp) + "  " + line.substring(tab + 1);
+        }
+        return line;
+    }
+
+    /**
+     * Cuts a line short if it could take more than the supplied number of bytes to send.  A character takes at most
+     * three bytes of UTF-8, a pair of surrogates four, so the limit is applied to a third of the bytes in characters.
+     * @param line the line.
+     * @param maxBytes the most bytes the line may take.
+     * @return the line, or its start followed by an ellipsis.
+     */
+    private static String truncate(String line, int maxBytes) {
+        int maxChars = maxBytes / 3;
+        if (line.length() <= maxChars) {
+            return line;
+        }
+        int end = maxChars - 3;
+        if (Character.isHighSurrogate(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.substring(0, end) + "...";
+    }
+
+    /**
+     * Returns true if the first characters of the string are all digits.
+     * @param str the string.
+     * @param length the number of characters to check.
+     * @return true if they are all digits.
+     */
+    private static boolean isDigits(String str, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isDigit(str.charAt(i))) {
+                return false;
+            }
+        }
+        return length < 19;
+    }
+
+    /**
+     * Reads the line starting at an offset in a log file.
+     * @param channel the log file.
+     * @param offset the offset of the line.
+     * @return the line, without its line break.
+     * @throws IOException if the file could not be read.
+     */
+    private static String readLine(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        while (true) {
+            int read = channel.read(buf, offset + buf.position());
+            for (int i = 0; i < buf.position(); i++) {
+                if (buf.get(i) == '\n') {
+                    return new String(buf.array(), 0, i, StandardCharsets.UTF_8);
+                }
+            }
+            if (read < 0) {
+                return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+            }
+            if (!buf.hasRemaining()) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+            }
+        }
+    }
+
+    /** Told about each line read from the logs. */
+    private interface LineVisitor {
+
+        /**
+         * Called for each complete line.
+         * @param file the file number of the log holding the line.
+         * @param offset the offset of the line within the log.
+         * @param line the line, without its line break.
+         * @return false to stop reading.
+         */
+        boolean visit(int file, long offset, String line);
+    }
+
+    /** The ascending positions of the lines containing one word. */
+    private static class Postings {
+
+        /** The positions, only the first size are in use. */
+        long[] positions = new long[4];
+
+        /** The number of positions. */
+        int size;
+
+        /**
+         * Adds a position, ignoring a repeat of the last one.
+         * @param position the position to add.
+         */
+        void add(long position) {
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        /**
+         * Returns the offsets within one log of the positions in it.
+         * @param file the file number of the log.
+         * @return the ascending offsets.
+         */
+        long[] offsetsIn(int file) {
+            long[] offsets = new long[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if ((int) (positions[i] >>> OFFSET_BITS) == file) {
+                    offsets[count++] = positions[i] & ((1L << OFFSET_BITS) - 1);
+                }
+            }
+            return Arrays.copyOf(offsets, count);
+        }
+
+        /**
+         * Removes the positions in one log.
+         * @param file the file number of the log.
+         * @return true if no positions are left.
+         */
+        boolean removeFile(int file) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if ((int) (positions[i] >>> OFFSET_BITS) != file) {
+                    positions[kept++] = positions[i];
+                }
+            }
+            size = kept;
+            return size == 0;
+        }
+
+        /**
+         * Writes the positions as a count followed by the gaps between them.
+         * @param out the stream to write to.
+         * @throws IOException if the write fails.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                SegmentIndex.writeVarLong(out, positions[i] - previous);
+                previous = positions[i];
+            }
+        }
+
+        /**
+         * Reads positions written by {@link #writeTo(DataOutputStream)}.
+         * @param in the stream to read from.
+         * @return the positions.
+         * @throws IOException if the read fails or the data is corrupt.
+         */
+        static Postings readFrom(DataInputStream in) throws IOException {
+            int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("Invalid postings length:  " + size);
+            }
+            Postings postings = new Postings();
+            postings.positions = new long[Math.max(4, size)];
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += SegmentIndex.readVarLong(in);
+                postings.positions[i] = previous;
+            }
+            postings.size = size;
+            return postings;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package datchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only journal of timestamped text records, written to a series of segment files through a single
+ * long-lived FileChannel.  Records are staged in memory by {@link #append(long, String)} and written together by
+ * {@link #flush()}, which is where the fsync policy is applied.  Under the INTERVAL policy a flush only forces once the
+ * interval has passed since the last force, so the owner also calls {@link #forceIfDue()} on a timer to force the
+ * tail of a burst that no later flush comes along for.  A segment is rolled over to the next file before a
+ * batch would take it past the segment size, so records never span segments.
+ * <p>
+ * Each record is one line:  the epoch milliseconds it was logged at, a tab, then the text with any line breaks
+ * replaced by spaces.  Segments are named {@code <prefix>-<sequence><suffix>.log}, so a suffix such as
+ * {@code -dat-chat} keeps every segment matching the same {@code *-dat-chat.log} pattern as the single-file logs
+ * before them.
+ * @author adam
+ */
+class ChatJournal {
+
+    /** Told where each record ended up once it has been written, for example to index it. */
+    interface RecordListener {
+
+        /**
+         * Called on the flushing thread for every record written.
+         * @param segment the segment the record was written to.
+         * @param offset the offset of the record within the segment.
+         * @param length the length of the record in bytes, including its line break.
+         * @param timestamp the epoch milliseconds the record was logged at.
+         * @param text the text of the record.
+         */
+        void recordWritten(Path segment, long offset, int length, long timestamp, String text);
+    }
+
+    /** The initial size of the staging buffer, grown on demand. */
+    private static final int STAGING_BYTES = 16 * 1024;
+
+    /** The directory the segments are written to. */
+    private final Path m_directory;
+
+    /** The name the segment files start with. */
+    private final String m_prefix;
+
+    /** The name the segment files end with, before the extension. */
+    private final String m_suffix;
+
+    /** The size a segment is rolled over at. */
+    private final long m_segmentBytes;
+
+    /** When written records are forced to disk. */
+    private final FsyncPolicy m_fsyncPolicy;
+
+    /** The shortest time between forces under the INTERVAL policy. */
+    private final long m_fsyncIntervalNanos;
+
+    /** Guards the channel and staging buffer, a lock rather than synchronized so virtual threads never pin. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** Records appended but not yet written. */
+    private ByteBuffer m_staging = ByteBuffer.allocate(STAGING_BYTES);
+
+    /** Told about every record written, null if nobody is listening. */
+    private RecordListener m_listener;
+
+    /** The records staged since the last flush, only kept while there is a listener. */
+    private final List<StagedRecord> m_staged = new ArrayList<>();
+
+    /** The segment being written, null until the first flush. */
+    private FileChannel m_channel;
+
+    /** The path of the segment being written. */
+    private Path m_segment;
+
+    /** The sequence number of the segment being written. */
+    private int m_sequence;
+
+    /** The bytes written to the current segment. */
+    private long m_segmentSize;
+
+    /** True when records have been written since the last force. */
+    private boolean m_unforced;
+
+    /** The {@link System#nanoTime()} of the last force. */
+    private long m_lastForce = System.nanoTime();
+
+    /**
+     * Constructor.  No file is created until the first records are flushed.
+     * @param directory the directory to write the segments to, created if it does not exist.
+     * @param prefix the name the segment files start with.
+     * @param suffix the name the segment files end with, before the extension.
+     * @param segmentBytes the size a segment is rolled over at.
+     * @param fsyncPolicy when written records are forced to disk.
+     * @param fsyncIntervalMillis the shortest time between forces under the INTERVAL policy.
+     */
+    ChatJournal(Path directory, String prefix, String suffix, long segmentBytes, FsyncPolicy fsyncPolicy,
+            long fsyncIntervalMillis) {
+        m_directory = directory;
+        m_prefix = prefix;
+        m_suffix = suffix;
+        m_segmentBytes = segmentBytes;
+        m_fsyncPolicy = fsyncPolicy;
+        m_fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+    }
+
+    /**
+     * Sets the listener told about every record written.
+     * @param listener the listener, null to clear it.
+     */
+    void setRecordListener(RecordListener listener) {
+        m_lock.lock();
+        try {
+            m_listener = listener;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Stages a record to be written by the next flush.
+     * @param timestamp the epoch milliseconds the record was logged at.
+     * @param text the text of the record.
+     */
+    void append(long timestamp, String text) {
+        byte[] line = (timestamp + "\t" + text.replace('\r', ' ').replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        m_lock.lock();
+        try {
+            if (m_staging.remaining() < line.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(m_staging.capacity() * 2, m_staging.position() + line.length));
+                m_staging.flip();
+                bigger.put(m_staging);
+                m_staging = bigger;
+            }
+            if (m_listener != null) {
+                m_staged.add(new StagedRecord(m_staging.position(), line.length, timestamp, text));
+            }
+            m_staging.put(line);
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every staged record to the current segment in one write, rolling to a new segment first if the batch
+     * would not fit, then forces the segment to disk if the fsync policy calls for it.
+     * @throws IOException if the records could not be written.
+     */
+    void flush() throws IOException {
+        m_lock.lock();
+        try {
+            if (m_staging.position() == 0) {
+                return;
+            }
+            m_staging.flip();
+            if (m_channel == null || (m_segmentSize > 0 && m_segmentSize + m_staging.remaining() > m_segmentBytes)) {
+                roll();
+            }
+            long base = m_segmentSize;
+            while (m_staging.hasRemaining()) {
+                m_segmentSize += m_channel.write(m_staging);
+            }
+            m_unforced = true;
+            if (m_listener != null) {
+                for (StagedRecord record : m_staged) {
+                    m_listener.recordWritten(m_segment, base + record.offset, record.length, record.timestamp, record.text);
+                }
+            }
+            if (m_fsyncPolicy == FsyncPolicy.PER_BATCH
+                    || (m_fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - m_lastForce >= m_fsyncIntervalNanos)) {
+                force();
+            }
+        } finally {
+            m_staged.clear();
+            m_staging.clear();
+            if (m_staging.capacity() > STAGING_BYTES) {
+                m_staging = ByteBuffer.allocate(STAGING_BYTES);
+            }
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Forces written records to disk if the policy is INTERVAL and the interval has passed since they were last
+     * forced.  Called every interval, this leaves no record unforced for more than about two intervals.
+     * @throws IOException if the force failed.
+     */
+    void forceIfDue() throws IOException {
+        m_lock.lock();
+        try {
+            if (m_fsyncPolicy == FsyncPolicy.INTERVAL && m_unforced && System.nanoTime() - m_lastForce >= m_fsyncIntervalNanos) {
+                force();
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and opens the next one.
+     * @throws IOException if the next segment could not be opened.
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        Files.createDirectories(m_directory);
+        m_sequence = Math.max(m_sequence, lastSequence()) + 1;
+        m_segment = m_directory.resolve(String.format("%s-%06d%s.log", m_prefix, m_sequence, m_suffix));
+        m_channel = FileChannel.open(m_segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        m_segmentSize = m_channel.size();
+    }
+
+    /**
+     * Returns the highest sequence number of this journal's segments already on disk, so a restarted journal with
+     * the same names carries on after them rather than appending to an old segment.
+     * @return the highest sequence number, zero if there are none.
+     * @throws IOException if the directory could not be read.
+     */
+    private int lastSequence() throws IOException {
+        int last = 0;
+        String end = m_suffix + ".log";
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(m_directory, m_prefix + "-*" + end)) {
+            for (Path segment : segments) {
+                String file = segment.getFileName().toString();
+                try {
+                    last = Math.max(last, Integer.parseInt(file.substring(m_prefix.length() + 1, file.length() - end.length())));
+                } catch (NumberFormatException nfe) {
+                    // Not one of our segments.
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Forces written records to disk.
+     * @throws IOException if the force failed.
+     */
+    private void force() throws IOException {
+        if (m_channel != null && m_unforced) {
+            m_channel.force(false);
+        }
+        m_unforced = false;
+        m_lastForce = System.nanoTime();
+    }
+
+    /**
+     * Forces and closes the current segment, unless the policy is NONE in which case it is only closed.
+     * @throws IOException if the segment could not be closed.
+     */
+    private void closeSegment() throws IOException {
+        if (m_channel == null) {
+            return;
+        }
+        try {
+            if (m_fsyncPolicy != FsyncPolicy.NONE) {
+                force();
+            }
+        } finally {
+            m_channel.close();
+            m_channel = null;
+        }
+    }
+
+    /** A record staged for the next flush, kept so the listener can be told where it was written. */
+    private static class StagedRecord {
+
+        /** The offset of the record within the staged batch. */
+        final int offset;
+
+        /** The length of the record in bytes. */
+        final int length;
+
+        /** The epoch milliseconds the record was logged at. */
+        final long timestamp;
+
+        /** The text of the record. */
+        final String text;
+
+        /**
+         * Constructor.
+         * @param offset the offset of the record within the staged batch.
+         * @param length the length of the record in bytes.
+         * @param timestamp the epoch milliseconds the record was logged at.
+         * @param text the text of the record.
+         */
+        StagedRecord(int offset, int length, long timestamp, String text) {
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Flushes anything staged and closes the journal.
+     * @throws IOException if the journal could not be flushed or closed.
+     */
+    void close() throws IOException {
+        m_lock.lock();
+        try {
+            flush();
+            closeSegment();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+}
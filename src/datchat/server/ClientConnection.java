@@ -0,0 +1,197 @@
+package datchat.server;
+
+import datchat.ChatMessage;
+import datchat.OnlineStatus;
+import datchat.UserStatus;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server side of a single connected chat user, independent of how the connection is serviced.  Messages sent to
+ * the user are placed on a bounded outbound queue and written by the connection's own writer, so a slow client never
+ * holds up a broadcast.
+ * <p>
+ * The memory a session holds is bounded by the outbound queue and by periodically trimming the connection's buffers
+ * back to their initial size, after a configured number of messages or bytes have passed through the session.
+ * @author adam
+ */
+abstract class ClientConnection {
+
+    /** The number of steps the queue depth is reported in (empty, quarter full, half full...). */
+    private static final int DEPTH_LEVELS = 4;
+
+    /** The server this client is connected to. */
+    final Server m_server;
+    /** A user id. */
+    final int id;
+    /** A username for the user, null until the client has logged in. */
+    volatile String username;
+    /** The time the user connected to the server. */
+    final long connectionTime;
+    /** The peer server link this connection carries, null for a chat client. */
+    volatile PeerLink peer;
+    /** The time the chat history replayed at login starts, the client pages back through the archive from here. */
+    volatile long historyStart;
+    /** The System.nanoTime() anything was last received from the client, heartbeats included. */
+    volatile long lastHeard;
+    /** The names of the rooms the user has joined, maintained by the server's room registry. */
+    final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    /** Encoded frames waiting to be written to the client. */
+    final OutboundQueue<EncodedFrame> m_outbound;
+    /** The limit on what the client may send, null if there is none.  Only used by the thread reading from it. */
+    final RateLimiter m_limiter;
+    /** Messages from the client that were delayed, dropped or refused by its rate limit. */
+    final AtomicLong m_throttled = new AtomicLong();
+    /** True once the client has been told its messages are being dropped, until one gets through again. */
+    boolean m_dropNoticeSent;
+    /** The highest queue depth level reported to the server listeners since the queue was last empty. */
+    private final AtomicInteger m_depthLevel = new AtomicInteger();
+    /** Messages read or written since the session buffers were last reset. */
+    private final AtomicInteger m_messagesSinceReset = new AtomicInteger();
+    /** Bytes read or written since the session buffers were last reset. */
+    private final AtomicLong m_bytesSinceReset = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param server the server this client is connected to.
+     * @param id the unique id of this connection.
+     */
+    ClientConnection(Server server, int id) {
+        m_server = server;
+        this.id = id;
+        connectionTime = System.currentTimeMillis();
+        lastHeard = System.nanoTime();
+        ServerConfig config = server.getConfig();
+        OverflowPolicy policy = config.getOverflowPolicy();
+        if (policy == OverflowPolicy.BLOCK && config.getMode() == ServerMode.NIO) {
+            // The queue drains on the selector thread that would be blocked, waiting could only end in a disconnect.
+            policy = OverflowPolicy.DISCONNECT;
+        }
+        m_outbound = new OutboundQueue<>(config.getQueueCapacity(), policy, config.getOverflowBlockMillis(),
+                EncodedFrame::length);
+        m_limiter = RateLimiter.create(config);
+    }
+
+    /**
+     * Returns a status object describing this user.
+     * @param oStat the online status to report.
+     * @return a status object describing this user.
+     */
+    UserStatus getUserStatus(OnlineStatus oStat) {
+        return getUserStatus(oStat, null);
+    }
+
+    /**
+     * Returns a status object describing this user's presence in a room.
+     * @param oStat the online status to report.
+     * @param room the room the status is scoped to, or null for the server as a whole.
+     * @return a status object describing this user.
+     */
+    UserStatus getUserStatus(OnlineStatus oStat, String room) {
+        InetAddress address = getInetAddress();
+        return new UserStatus(username, m_server.getHostname(address), address.getHostAddress(), connectionTime, oStat, room);
+    }
+
+    /**
+     * Encodes the supplied ChatMessage and queues it to be written to this client.
+     * @param msg the ChatMessage object to write.
+     * @return true if the message was queued, false if the connection is bad or the client could not keep up.
+     */
+    boolean writeMsg(ChatMessage msg) {
+        return writeFrame(EncodedFrame.encode(msg));
+    }
+
+    /**
+     * Queues an already encoded frame to be written to this client.  The frame may be shared with other clients.
+     * @param frame the frame to write.
+     * @return true if the frame was queued, false if the connection is bad or the client could not keep up.
+     */
+    boolean writeFrame(EncodedFrame frame) {
+        boolean queued = m_outbound.offer(frame);
+        reportQueueDepth();
+        if (queued) {
+            messageQueued();
+        }
+        return queued;
+    }
+
+    /**
+     * Tells the server listeners about the queue depth each time it climbs to a new level, and once more when it has
+     * drained back to empty, so a backlog is reported a handful of times rather than on every message.
+     */
+    void reportQueueDepth() {
+        int depth = m_outbound.size();
+        int level = depth * DEPTH_LEVELS / m_outbound.capacity();
+        int reported = m_depthLevel.get();
+        boolean climbed = level > reported;
+        boolean drained = depth == 0 && reported > 0;
+        if ((climbed || drained) && m_depthLevel.compareAndSet(reported, level)) {
+            m_server.showQueueDepth(this, depth, m_outbound.capacity());
+        }
+    }
+
+    /**
+     * Records a message read from or written to the client, resetting the session's buffers when the configured
+     * message or byte count is reached.  Must be called from the thread that owns the buffers being trimmed.
+     * @param bytes the size of the message on the wire.
+     */
+    void recordTraffic(int bytes) {
+        ServerConfig config = m_server.getConfig();
+        int messages = m_messagesSinceReset.incrementAndGet();
+        long total = m_bytesSinceReset.addAndGet(bytes);
+        boolean countReached = config.getSessionResetMessages() > 0 && messages >= config.getSessionResetMessages();
+        boolean bytesReached = config.getSessionResetBytes() > 0 && total >= config.getSessionResetBytes();
+        if (countReached || bytesReached) {
+            m_messagesSinceReset.set(0);
+            m_bytesSinceReset.set(0);
+            trimBuffers();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the resources held for this client.
+     * @return a snapshot of the resources held for this client.
+     */
+    SessionStats getStats() {
+        return new SessionStats(id, username, connectionTime, m_outbound.getQueuedBytes() + getBufferedBytes(), m_outbound.size(),
+                m_outbound.getDropped(), m_throttled.get());
+    }
+
+    /**
+     * Returns whether the connection has been closed.
+     * @return true once the connection has been closed.
+     */
+    boolean isClosed() {
+        return m_outbound.isClosed();
+    }
+
+    /** Closes the connection, discarding anything still queued for the client. */
+    void close() {
+        m_outbound.close();
+        closeSocket();
+    }
+
+    /**
+     * Returns the address of the remote end of this connection.
+     * @return the address of the remote end of this connection.
+     */
+    abstract InetAddress getInetAddress();
+
+    /** Called after a message has been queued, so the writer can be woken if it needs to be. */
+    abstract void messageQueued();
+
+    /** Releases the socket of this connection. */
+    abstract void closeSocket();
+
+    /**
+     * Returns the bytes held in this connection's read and write buffers, not counting queued frames.
+     * @return the bytes held in this connection's buffers.
+     */
+    abstract long getBufferedBytes();
+
+    /** Shrinks any buffer that has grown past its initial size back down, if it is not in use. */
+    abstract void trimBuffers();
+}
@@ -0,0 +1,82 @@
+package datchat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connected clients, indexed by connection id and by username.  Lookups, additions and removals are O(1) and never
+ * take a server-wide lock, and iteration is weakly consistent: a broadcast walking the clients sees a consistent
+ * snapshot of each entry while logins and logouts carry on around it.  A username maps to every session of that user,
+ * whichever hosts they are on, as direct messages go to all of them.
+ * @author adam
+ */
+class ClientRegistry {
+
+    /** Clients by connection id. */
+    private final ConcurrentHashMap<Integer, ClientConnection> m_byId = new ConcurrentHashMap<>();
+
+    /** Clients by username, a user may be logged in from more than one host. */
+    private final ConcurrentHashMap<String, Set<ClientConnection>> m_byUser = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a logged in client.
+     * @param client the client to add, its username must be set.
+     */
+    void add(ClientConnection client) {
+        m_byId.put(client.id, client);
+        // Add inside the compute, a racing remove could otherwise drop the set as empty before the add lands in it.
+        m_byUser.compute(client.username, (u, sessions) -> {
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+            }
+            sessions.add(client);
+            return sessions;
+        });
+    }
+
+    /**
+     * Removes the client with the supplied connection id.  Only one caller will ever get a given client back, so it
+     * is safe for several threads to race to remove the same client.
+     * @param id the connection id.
+     * @return the removed client, or null if there was no such client.
+     */
+    ClientConnection remove(int id) {
+        ClientConnection client = m_byId.remove(id);
+        if (client != null) {
+            m_byUser.computeIfPresent(client.username, (u, sessions) -> {
+                sessions.remove(client);
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+        return client;
+    }
+
+    /**
+     * Returns true if the supplied client is connected, that is it has been added and not yet removed.
+     * @param client the client.
+     * @return true if the client is connected.
+     */
+    boolean contains(ClientConnection client) {
+        return m_byId.get(client.id) == client;
+    }
+
+    /**
+     * Returns every session of the supplied user.
+     * @param username the username to look up.
+     * @return the user's sessions, empty if the user is not logged in.
+     */
+    Set<ClientConnection> getByUsername(String username) {
+        Set<ClientConnection> sessions = m_byUser.get(username);
+        return sessions == null ? Collections.emptySet() : Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * Returns a weakly consistent, unmodifiable view of all connected clients.
+     * @return all connected clients.
+     */
+    Collection<ClientConnection> all() {
+        return Collections.unmodifiableCollection(m_byId.values());
+    }
+}
@@ -0,0 +1,28 @@
+package datchat.server;
+
+import datchat.ChatLine;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes the server's chat room and event output to standard out, for a server running without a display.  Nothing
+ * here touches AWT or Swing, so a headless server never loads them.  Lines are written whole, so output from
+ * different threads does not interleave within a line.
+ * @author adam
+ */
+public class ConsoleOutput implements ServerOutputHandler {
+
+    /** Formats the time an event is logged, unlike the shared SimpleDateFormats it is safe to use from any thread. */
+    private static final DateTimeFormatter EVENT_FORMATTER = DateTimeFormatter.ofPattern("MM/dd/yy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    @Override
+    public void handleChatRoomMsg(ChatLine msg) {
+        System.out.println(msg);
+    }
+
+    @Override
+    public void handleEventMsg(String msg) {
+        System.out.println(EVENT_FORMATTER.format(Instant.now()) + "  " + msg.trim());
+    }
+}
@@ -0,0 +1,60 @@
+package datchat.server;
+
+import datchat.ChatMessage;
+import datchat.WireCodec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message already encoded into its wire frame.  The bytes are never modified after encoding, so a broadcast encodes
+ * a message once and the same frame is queued for every recipient without copying or re-encoding.
+ * @author adam
+ */
+final class EncodedFrame {
+
+    /** The complete frame, length header included.  Never modified and never handed out. */
+    private final byte[] m_bytes;
+
+    /**
+     * Constructor.
+     * @param msg the message to encode.
+     */
+    private EncodedFrame(ChatMessage msg) {
+        m_bytes = WireCodec.encodeFrame(msg);
+    }
+
+    /**
+     * Encodes the supplied message.
+     * @param msg the message to encode.
+     * @return the encoded frame.
+     */
+    static EncodedFrame encode(ChatMessage msg) {
+        return new EncodedFrame(msg);
+    }
+
+    /**
+     * Returns the size of the frame in bytes.
+     * @return the size of the frame in bytes.
+     */
+    int length() {
+        return m_bytes.length;
+    }
+
+    /**
+     * Returns a new read-only view of the frame with its own position, sharing the frame's bytes.
+     * @return a read-only view of the frame.
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(m_bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the frame to the supplied stream.
+     * @param out the stream to write to.
+     * @throws IOException if the write fails.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(m_bytes);
+    }
+}
@@ -0,0 +1,14 @@
+package datchat.server;
+
+/**
+ * When a chat journal forces what it has written through to the disk.
+ * @author adam
+ */
+public enum FsyncPolicy {
+    /** Never force, leave it to the operating system.  Fastest, but a crash can lose recent records. */
+    NONE,
+    /** Force at most once per configured interval, when a batch is written. */
+    INTERVAL,
+    /** Force after every batch is written.  Nothing acknowledged is lost, at the cost of a disk sync per batch. */
+    PER_BATCH;
+}
@@ -0,0 +1,156 @@
+package datchat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hashed timer wheel, for timeouts on many connections at once at a coarse resolution.  Time is divided into ticks
+ * and a timeout is hashed into the slot its deadline tick falls in, so scheduling one costs the same however many are
+ * waiting, and each tick only looks at the timeouts in one slot.  A timeout more than a whole turn of the wheel away
+ * waits in its slot until the turn its deadline comes round.
+ * <p>
+ * Timeouts cannot be cancelled: a task is expected to check whether it is still wanted when it runs, and to schedule
+ * itself again if its deadline has moved.  That keeps the wheel untouched on the busy path, where a deadline is pushed
+ * back on every message received.
+ * <p>
+ * The wheel does not keep time itself, whoever owns it calls {@link #tick()} at the tick interval.
+ * @author adam
+ */
+class HashedTimerWheel {
+
+    /** The length of a tick in nanoseconds. */
+    private final long m_tickNanos;
+
+    /** The first timeout waiting in each slot. */
+    private final Timeout[] m_slots;
+
+    /** Masks a tick number down to its slot. */
+    private final int m_mask;
+
+    /** The time the wheel started, ticks are counted from here. */
+    private final long m_startNanos;
+
+    /** Guards the slots and the tick count. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** The last tick whose slot has been run. */
+    private long m_tick;
+
+    /**
+     * Constructor.
+     * @param tickMillis the length of a tick in milliseconds, the resolution timeouts run at.
+     * @param slots the number of slots, rounded up to a power of two.
+     */
+    HashedTimerWheel(long tickMillis, int slots) {
+        m_tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        m_slots = new Timeout[size];
+        m_mask = size - 1;
+        m_startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task to run once, no sooner than the delay and at most a tick after it.
+     * @param task the task to run.
+     * @param delayMillis the delay in milliseconds.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        long deadline = (System.nanoTime() - m_startNanos + delayNanos + m_tickNanos - 1) / m_tickNanos;
+        m_lock.lock();
+        try {
+            // A tick that is running late must not put the timeout in a slot it has already passed.
+            deadline = Math.max(deadline, m_tick + 1);
+            int slot = (int) (deadline & m_mask);
+            m_slots[slot] = new Timeout(task, deadline, m_slots[slot]);
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Runs every task whose deadline has passed, catching up on any ticks missed since the last call.  Tasks run on
+     * the calling thread, after the wheel's lock is released, so they may schedule themselves again.
+     */
+    void tick() {
+        long now = (System.nanoTime() - m_startNanos) / m_tickNanos;
+        List<Runnable> due = new ArrayList<>();
+        m_lock.lock();
+        try {
+            while (m_tick < now) {
+                m_tick++;
+                int slot = (int) (m_tick & m_mask);
+                Timeout t = m_slots[slot];
+                m_slots[slot] = null;
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.deadline <= m_tick) {
+                        due.add(t.task);
+                    } else {
+                        // Due on a later turn of the wheel.
+                        t.next = m_slots[slot];
+                        m_slots[slot] = t;
+                    }
+                    t = next;
+                }
+            }
+        } finally {
+            m_lock.unlock();
+        }
+        // One failing task must not lose the others, they have already been taken off the wheel.
+        RuntimeException failure = null;
+        for (Runnable task : due) {
+            try {
+                task.run();
+            } catch (RuntimeException rex) {
+                if (failure == null) {
+                    failure = rex;
+                } else {
+                    failure.addSuppressed(rex);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Forgets every waiting timeout. */
+    void clear() {
+        m_lock.lock();
+        try {
+            for (int i = 0; i < m_slots.length; i++) {
+                m_slots[i] = null;
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /** A task waiting in a slot, linked to the next in the same slot. */
+    private static class Timeout {
+
+        /** The task to run. */
+        final Runnable task;
+
+        /** The tick the task is due on. */
+        final long deadline;
+
+        /** The next timeout in the slot. */
+        Timeout next;
+
+        /**
+         * Constructor.
+         * @param task the task to run.
+         * @param deadline the tick the task is due on.
+         * @param next the next timeout in the slot.
+         */
+        Timeout(Runnable task, long deadline, Timeout next) {
+            this.task = task;
+            this.deadline = deadline;
+            this.next = next;
+        }
+    }
+}
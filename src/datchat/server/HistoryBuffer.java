@@ -0,0 +1,107 @@
+package datchat.server;
+
+/**
+ * The most recent chat messages, kept as encoded frames so they can be replayed to a newly connected client without
+ * encoding them again.  The ring of slots is allocated once up front and bounded by both a message count and a total
+ * byte size.  Appending only stores a reference to a frame that has already been encoded for its broadcast, so
+ * retaining history allocates nothing.
+ * <p>
+ * Not thread safe, the server only touches it while holding its broadcast lock.
+ * @author adam
+ */
+class HistoryBuffer {
+
+    /** The retained frames, oldest at m_head. */
+    private final EncodedFrame[] m_slots;
+
+    /** The times the retained frames were broadcast, in the same slots as the frames. */
+    private final long[] m_times;
+
+    /** The most bytes retained. */
+    private final long m_maxBytes;
+
+    /** The index of the oldest retained frame. */
+    private int m_head;
+
+    /** The number of retained frames. */
+    private int m_size;
+
+    /** The total size of the retained frames. */
+    private long m_bytes;
+
+    /**
+     * Constructor.
+     * @param maxMessages the most messages retained, zero to retain none.
+     * @param maxBytes the most bytes retained.
+     */
+    HistoryBuffer(int maxMessages, long maxBytes) {
+        m_slots = new EncodedFrame[maxMessages];
+        m_times = new long[maxMessages];
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends a frame, evicting the oldest frames as needed to stay within the limits.  A frame larger than the byte
+     * limit on its own is not retained.
+     * @param frame the frame to append.
+     * @param time the epoch milliseconds the frame was broadcast at.
+     */
+    void append(EncodedFrame frame, long time) {
+        if (m_slots.length == 0 || frame.length() > m_maxBytes) {
+            return;
+        }
+        while (m_size == m_slots.length || m_bytes + frame.length() > m_maxBytes) {
+            evictOldest();
+        }
+        m_slots[(m_head + m_size) % m_slots.length] = frame;
+        m_times[(m_head + m_size) % m_slots.length] = time;
+        m_size++;
+        m_bytes += frame.length();
+    }
+
+    /** Drops the oldest retained frame. */
+    private void evictOldest() {
+        m_bytes -= m_slots[m_head].length();
+        m_slots[m_head] = null;
+        m_head = (m_head + 1) % m_slots.length;
+        m_size--;
+    }
+
+    /**
+     * Queues every retained frame to a client, oldest first.
+     * @param client the client to replay history to.
+     * @return false if the client could not take the whole history.
+     */
+    boolean replayTo(ClientConnection client) {
+        for (int i = 0; i < m_size; i++) {
+            if (!client.writeFrame(m_slots[(m_head + i) % m_slots.length])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the time the oldest retained frame was broadcast.
+     * @return the epoch milliseconds of the oldest frame, or -1 if nothing is retained.
+     */
+    long oldestTime() {
+        return m_size == 0 ? -1 : m_times[m_head];
+    }
+
+    /**
+     * Returns the number of retained frames.
+     * @return the number of retained frames.
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Returns the total size of the retained frames.
+     * @return the retained bytes.
+     */
+    long getBytes() {
+        return m_bytes;
+    }
+}
@@ -0,0 +1,168 @@
+package datchat.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The hostnames of client addresses, resolved in the background and kept for a time to live.  A reverse DNS lookup
+ * can take seconds when a name server is slow, so a lookup never waits for one: it answers from the cache, or with the
+ * address itself while the name is resolved on one of the cache's own threads.  The owner is told when an address
+ * resolves to a different name than it was last answered with, so it can tell users.
+ * <p>
+ * An expired name is still answered with while it is resolved again.  Entries are only dropped by {@link #prune()}.
+ * @author adam
+ */
+class HostnameCache {
+
+    /** How long a resolved name is good for, in nanoseconds, zero if names are not resolved. */
+    private final long m_ttlNanos;
+
+    /** Runs the reverse lookups. */
+    private final ExecutorService m_resolver;
+
+    /** Told the address whenever it resolves to a new name. */
+    private final Consumer<InetAddress> m_listener;
+
+    /** The resolved names, by address. */
+    private final Map<InetAddress, Entry> m_entries = new ConcurrentHashMap<>();
+
+    /** The addresses being resolved, so each is only looked up once at a time. */
+    private final Set<InetAddress> m_resolving = ConcurrentHashMap.newKeySet();
+
+    /** The lookups answered from the cache. */
+    private final AtomicLong m_hits = new AtomicLong();
+
+    /** The lookups that started a resolution. */
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /** The reverse lookups completed. */
+    private final AtomicLong m_resolutions = new AtomicLong();
+
+    /** The reverse lookups that found no name. */
+    private final AtomicLong m_failures = new AtomicLong();
+
+    /** The total time spent in reverse lookups, in nanoseconds. */
+    private final AtomicLong m_resolveNanos = new AtomicLong();
+
+    /** The longest reverse lookup, in nanoseconds. */
+    private final AtomicLong m_maxResolveNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param ttlSeconds how long a resolved name is good for, zero to never resolve names and answer with addresses.
+     * @param threads the number of threads doing reverse lookups.
+     * @param listener told the address whenever it resolves to a new name, on a resolver thread.
+     */
+    HostnameCache(int ttlSeconds, int threads, Consumer<InetAddress> listener) {
+        m_ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        m_listener = listener;
+        AtomicInteger count = new AtomicInteger();
+        m_resolver = Executors.newFixedThreadPool(threads, (r) -> {
+            Thread t = new Thread(r, "datchat-resolver-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the hostname of an address without waiting, resolving it in the background if it is not cached or has
+     * expired.
+     * @param address the address.
+     * @return the cached hostname, or the address as text if it has not been resolved yet.
+     */
+    String lookup(InetAddress address) {
+        if (m_ttlNanos == 0) {
+            return address.getHostAddress();
+        }
+        Entry entry = m_entries.get(address);
+        if (entry != null && System.nanoTime() - entry.resolved < m_ttlNanos) {
+            m_hits.incrementAndGet();
+            return entry.name;
+        }
+        m_misses.incrementAndGet();
+        if (m_resolving.add(address)) {
+            try {
+                m_resolver.execute(() -> resolve(address));
+            } catch (RejectedExecutionException e) {
+                m_resolving.remove(address);
+            }
+        }
+        return entry == null ? address.getHostAddress() : entry.name;
+    }
+
+    /**
+     * Does the reverse lookup of an address and caches the name, telling the listener if it has changed.
+     * @param address the address.
+     */
+    private void resolve(InetAddress address) {
+        long start = System.nanoTime();
+        String name;
+        try {
+            // A fresh InetAddress, so the name comes from DNS rather than one the original may already be holding.
+            name = InetAddress.getByAddress(address.getAddress()).getHostName();
+        } catch (UnknownHostException e) {
+            name = address.getHostAddress();
+        }
+        long took = System.nanoTime() - start;
+        m_resolutions.incrementAndGet();
+        m_resolveNanos.addAndGet(took);
+        m_maxResolveNanos.accumulateAndGet(took, Math::max);
+        if (name.equals(address.getHostAddress())) {
+            m_failures.incrementAndGet();
+        }
+        Entry previous = m_entries.put(address, new Entry(name, System.nanoTime()));
+        m_resolving.remove(address);
+        String answered = previous == null ? address.getHostAddress() : previous.name;
+        if (!name.equals(answered)) {
+            m_listener.accept(address);
+        }
+    }
+
+    /** Drops the names that have gone unused for a whole time to live past their expiry. */
+    void prune() {
+        long now = System.nanoTime();
+        m_entries.values().removeIf((entry) -> now - entry.resolved >= 2 * m_ttlNanos);
+    }
+
+    /**
+     * Returns a snapshot of the cache's effectiveness.
+     * @return the cache statistics.
+     */
+    ResolverStats getStats() {
+        long resolutions = m_resolutions.get();
+        long average = resolutions == 0 ? 0 : m_resolveNanos.get() / resolutions;
+        return new ResolverStats(m_hits.get(), m_misses.get(), resolutions, m_failures.get(),
+                TimeUnit.NANOSECONDS.toMicros(average), TimeUnit.NANOSECONDS.toMicros(m_maxResolveNanos.get()),
+                m_entries.size());
+    }
+
+    /** A resolved name and when it was resolved. */
+    private static class Entry {
+
+        /** The hostname, or the address as text if it has none. */
+        final String name;
+
+        /** The {@link System#nanoTime()} it was resolved. */
+        final long resolved;
+
+        /**
+         * Constructor.
+         * @param name the hostname.
+         * @param resolved the time it was resolved.
+         */
+        Entry(String name, long resolved) {
+            this.name = name;
+            this.resolved = resolved;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package datchat.server;
+
+/**
+ * A snapshot of the traffic over one link to a peer server.
+ * @author adam
+ */
+public class LinkStats {
+
+    /** The node id of the peer server. */
+    public final String nodeId;
+    /** The address this server dialed to reach the peer, null if the peer dialed this server. */
+    public final String address;
+    /** The number of relayed messages received over the link and accepted. */
+    public final long received;
+    /** The number of relayed messages sent over the link. */
+    public final long sent;
+    /** The number of relayed messages received that had already arrived by another path, and were dropped. */
+    public final long duplicates;
+    /** The smoothed time relayed messages take to cross the link, in microseconds. */
+    public final long latencyMicros;
+    /** The longest time a relayed message has taken to cross the link, in microseconds. */
+    public final long maxLatencyMicros;
+    /** The number of frames waiting to be written to the peer. */
+    public final int queuedFrames;
+    /** The bytes of frames waiting to be written to the peer. */
+    public final long queuedBytes;
+
+    /**
+     * Constructor.
+     * @param nodeId the node id of the peer.
+     * @param address the address dialed, null if the peer dialed in.
+     * @param received the relayed messages accepted.
+     * @param sent the relayed messages sent.
+     * @param duplicates the relayed messages dropped as duplicates.
+     * @param latencyMicros the smoothed latency.
+     * @param maxLatencyMicros the longest latency.
+     * @param queuedFrames the frames waiting to be written.
+     * @param queuedBytes the bytes waiting to be written.
+     */
+    public LinkStats(String nodeId, String address, long received, long sent, long duplicates, long latencyMicros,
+            long maxLatencyMicros, int queuedFrames, long queuedBytes) {
+        this.nodeId = nodeId;
+        this.address = address;
+        this.received = received;
+        this.sent = sent;
+        this.duplicates = duplicates;
+        this.latencyMicros = latencyMicros;
+        this.maxLatencyMicros = maxLatencyMicros;
+        this.queuedFrames = queuedFrames;
+        this.queuedBytes = queuedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Link " + nodeId + (address == null ? "" : " (" + address + ")") + ":  " + received + " received, "
+                + sent + " sent, " + duplicates + " duplicates, latency " + latencyMicros + "us (max "
+                + maxLatencyMicros + "us), backlog " + queuedFrames + " frames/" + queuedBytes + " bytes";
+    }
+}
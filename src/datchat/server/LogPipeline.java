@@ -0,0 +1,203 @@
+package datchat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves log records off the threads that produce them and onto a single writer thread, so disk latency never adds to
+ * chat latency.  Producers never take a lock:  a record is added to a lock-free queue whose size is bounded by an
+ * atomic count, and a record that arrives while the queue is full is dropped and counted rather than blocking the
+ * producer.  The writer drains whatever has accumulated, appends it to the journals and flushes each journal once per
+ * batch (group commit), so a burst of records costs one write and at most one fsync per journal.
+ * @author adam
+ */
+class LogPipeline {
+
+    /** The most records written in one batch. */
+    private static final int MAX_BATCH = 1024;
+
+    /** How long the writer sleeps when there is nothing to write, as a backstop to being woken by producers. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** The records waiting to be written. */
+    private final Queue<Record> m_queue = new ConcurrentLinkedQueue<>();
+
+    /** The number of records waiting, which bounds the queue. */
+    private final AtomicInteger m_count = new AtomicInteger();
+
+    /** The most records allowed to wait. */
+    private final int m_capacity;
+
+    /** The journal notices about dropped records are written to. */
+    private final ChatJournal m_noticeJournal;
+
+    /** The records dropped because the queue was full. */
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /** The number of dropped records already noted in the notice journal, only touched by the writer. */
+    private long m_droppedNoted;
+
+    /** The writer thread. */
+    private final Thread m_writer;
+
+    /** True while the writer is parked or about to park, so producers know to wake it. */
+    private volatile boolean m_idle;
+
+    /** Turned off to stop the writer once the queue has drained. */
+    private volatile boolean m_running = true;
+
+    /**
+     * Constructor, starts the writer thread.
+     * @param capacity the most records allowed to wait.
+     * @param noticeJournal the journal notices about dropped records are written to.
+     */
+    LogPipeline(int capacity, ChatJournal noticeJournal) {
+        m_capacity = capacity;
+        m_noticeJournal = noticeJournal;
+        m_writer = new Thread(this::writeLoop, "datchat-log");
+        m_writer.setDaemon(true);
+        m_writer.start();
+    }
+
+    /**
+     * Queues a record to be written, timestamped now.  Never blocks.  The record is turned into text on the writer
+     * thread, so a producer can hand over a chat line without formatting it first.
+     * @param journal the journal to write the record to.
+     * @param text the record, written as its toString().
+     * @return true if the record was queued, false if it was dropped because the writer is not keeping up.
+     */
+    boolean offer(ChatJournal journal, Object text) {
+        if (m_count.incrementAndGet() > m_capacity) {
+            m_count.decrementAndGet();
+            m_dropped.incrementAndGet();
+            return false;
+        }
+        m_queue.add(new Record(journal, System.currentTimeMillis(), text));
+        if (m_idle) {
+            LockSupport.unpark(m_writer);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of records dropped because the writer could not keep up.
+     * @return the number of records dropped.
+     */
+    long getDropped() {
+        return m_dropped.get();
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     * @return the number of records waiting.
+     */
+    int getBacklog() {
+        return m_count.get();
+    }
+
+    /** Writes batches until stopped and drained. */
+    private void writeLoop() {
+        List<ChatJournal> touched = new ArrayList<>(2);
+        while (m_running || !m_queue.isEmpty()) {
+            Record record = m_queue.poll();
+            if (record == null) {
+                m_idle = true;
+                // Check again now producers can see we are idle, so a record added in between is not missed.
+                if (m_queue.isEmpty() && m_running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                m_idle = false;
+                continue;
+            }
+
+            int written = 0;
+            do {
+                try {
+                    record.journal.append(record.timestamp, record.text.toString());
+                    if (!touched.contains(record.journal)) {
+                        touched.add(record.journal);
+                    }
+                } catch (RuntimeException rex) {
+                    // A record that cannot be rendered is lost, but must not take the writer down with it.
+                    System.out.println("Error formatting a log record, skipping it:  " + rex);
+                    rex.printStackTrace();
+                }
+                written++;
+            } while (written < MAX_BATCH && (record = m_queue.poll()) != null);
+            m_count.addAndGet(-written);
+
+            noteDropped(touched);
+            for (ChatJournal journal : touched) {
+                try {
+                    journal.flush();
+                } catch (IOException ioex) {
+                    System.out.println("Error writing " + written + " log records to the journal.");
+                    ioex.printStackTrace();
+                } catch (RuntimeException rex) {
+                    // Most likely the record listener, the records themselves have been written.
+                    System.out.println("Error flushing " + written + " log records to the journal:  " + rex);
+                    rex.printStackTrace();
+                }
+            }
+            touched.clear();
+        }
+    }
+
+    /**
+     * Adds a notice to the batch if records have been dropped since the last notice.
+     * @param touched the journals written in this batch.
+     */
+    private void noteDropped(List<ChatJournal> touched) {
+        long dropped = m_dropped.get();
+        if (dropped > m_droppedNoted) {
+            m_noticeJournal.append(System.currentTimeMillis(), "Dropped " + (dropped - m_droppedNoted)
+                    + " log records because the disk is not keeping up, " + dropped + " dropped in total.");
+            m_droppedNoted = dropped;
+            if (!touched.contains(m_noticeJournal)) {
+                touched.add(m_noticeJournal);
+            }
+        }
+    }
+
+    /**
+     * Stops the writer once everything queued has been written, waiting a short while for it to finish.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void close() throws InterruptedException {
+        m_running = false;
+        LockSupport.unpark(m_writer);
+        m_writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /** A record waiting to be written. */
+    private static class Record {
+
+        /** The journal to write the record to. */
+        final ChatJournal journal;
+
+        /** The epoch milliseconds the record was logged at. */
+        final long timestamp;
+
+        /** The record, written as its toString(). */
+        final Object text;
+
+        /**
+         * Constructor.
+         * @param journal the journal to write the record to.
+         * @param timestamp the epoch milliseconds the record was logged at.
+         * @param text the record, written as its toString().
+         */
+        Record(ChatJournal journal, long timestamp, Object text) {
+            this.journal = journal;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+}
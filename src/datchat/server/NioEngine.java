@@ -0,0 +1,648 @@
+package datchat.server;
+
+import datchat.ChatMessage;
+import datchat.WireCodec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection engine for the Server.  Accepting is done by the thread that calls {@link #run(int)}, and
+ * every accepted connection is handed to one of a small, fixed set of event loops which service read and write
+ * readiness for all of their connections.  Nothing in the engine ever blocks on a client socket.
+ * <p>
+ * Outbound frames are coalesced: each flush gathers as many queued frames as the configured batch allows and hands
+ * them to the socket in a single gathering write.  With a write delay configured, a flush is deferred by that long
+ * so that a burst of broadcasts leaves in as few writes as possible.
+ *
+ * @author adam
+ */
+class NioEngine {
+
+    /** The initial size of each connection's read buffer, grown on demand for large frames. */
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+    /** The server whose clients this engine services. */
+    private final Server m_server;
+
+    /** The event loops that service the accepted connections. */
+    private final EventLoop[] m_loops;
+
+    /** The selector used to wait for new connections. */
+    private Selector m_acceptSelector;
+
+    /** The channel the engine accepts connections on. */
+    private ServerSocketChannel m_serverChannel;
+
+    /** Turned off to stop the engine. */
+    private volatile boolean m_running;
+
+    /** Index of the event loop that will receive the next accepted connection. */
+    private int m_nextLoop;
+
+    /**
+     * Constructor.
+     * @param server the server whose clients this engine services.
+     * @param ioThreads the number of event loops to run.
+     */
+    NioEngine(Server server, int ioThreads) {
+        m_server = server;
+        m_loops = new EventLoop[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Binds the supplied port and services connections until {@link #shutdown()} is called.
+     * @param port the port to listen for clients on.
+     * @throws IOException if the port could not be bound.
+     */
+    void run(int port) throws IOException {
+        m_running = true;
+        m_acceptSelector = Selector.open();
+        m_serverChannel = ServerSocketChannel.open();
+        m_serverChannel.bind(new InetSocketAddress(port));
+        m_serverChannel.configureBlocking(false);
+        m_serverChannel.register(m_acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < m_loops.length; i++) {
+            m_loops[i] = new EventLoop(i);
+            m_loops[i].start();
+        }
+        m_server.showServerLogOutput("Server waiting for Clients on port " + port + " with " + m_loops.length + " I/O threads.");
+
+        try {
+            while (m_running) {
+                m_acceptSelector.select();
+                m_acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while (m_running && (channel = acceptQuietly()) != null) {
+                    EventLoop loop = m_loops[m_nextLoop];
+                    m_nextLoop = (m_nextLoop + 1) % m_loops.length;
+                    loop.register(channel);
+                }
+            }
+        } finally {
+            shutdown();
+            m_acceptSelector.close();
+        }
+    }
+
+    /** Stops accepting, stops the event loops and closes every connection they own. */
+    void shutdown() {
+        m_running = false;
+        try {
+            if (m_serverChannel != null) {
+                m_serverChannel.close();
+            }
+        } catch (IOException ioe) {
+            m_server.showServerLogOutput("Error closing server channel:  " + ioe);
+        }
+        if (m_acceptSelector != null) {
+            m_acceptSelector.wakeup();
+        }
+        for (EventLoop loop : m_loops) {
+            if (loop != null) {
+                loop.m_selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection, returning null if there is none or the accept failed.
+     * @return the accepted channel, or null.
+     */
+    private SocketChannel acceptQuietly() {
+        try {
+            SocketChannel channel = m_serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+            }
+            return channel;
+        } catch (IOException e) {
+            // Don't let an error kill the connection thread...
+            if (m_running) {
+                m_server.showServerLogOutput("Error occured listening for clients:  " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /** A thread servicing read and write readiness for a subset of the connections. */
+    private class EventLoop extends Thread {
+
+        /** The selector this loop waits on. */
+        private final Selector m_selector;
+
+        /** Work handed to this loop from other threads, run on the loop thread. */
+        private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<>();
+
+        /** Delayed work ordered by deadline, only touched on the loop thread. */
+        private final PriorityQueue<DelayedTask> m_delayed = new PriorityQueue<>(
+                Comparator.comparingLong((DelayedTask t) -> t.deadline));
+
+        /**
+         * Constructor.
+         * @param index the index of this loop, used for naming the thread.
+         * @throws IOException if a selector could not be opened.
+         */
+        EventLoop(int index) throws IOException {
+            super("datchat-nio-" + index);
+            setDaemon(true);
+            m_selector = Selector.open();
+        }
+
+        /**
+         * Runs the supplied task on this loop's thread.
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            m_tasks.add(task);
+            m_selector.wakeup();
+        }
+
+        /**
+         * Runs the supplied task on this loop's thread once the delay has passed.  The selector only times out in
+         * whole milliseconds, so short delays are rounded up.
+         * @param task the task to run.
+         * @param delayNanos the delay in nanoseconds.
+         */
+        void schedule(Runnable task, long delayNanos) {
+            long deadline = System.nanoTime() + delayNanos;
+            execute(() -> m_delayed.add(new DelayedTask(deadline, task)));
+        }
+
+        /**
+         * Waits for readiness, or until the next delayed task is due.
+         * @throws IOException if the selector fails.
+         */
+        private void select() throws IOException {
+            DelayedTask next = m_delayed.peek();
+            if (next == null) {
+                m_selector.select();
+                return;
+            }
+            long wait = next.deadline - System.nanoTime();
+            if (wait <= 0) {
+                m_selector.selectNow();
+            } else {
+                m_selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+            }
+        }
+
+        /** Runs every delayed task that is due. */
+        private void runDelayed() {
+            long now = System.nanoTime();
+            while (!m_delayed.isEmpty() && m_delayed.peek().deadline - now <= 0) {
+                runTask(m_delayed.poll().task);
+            }
+        }
+
+        /**
+         * Runs a task on the loop thread, logging rather than propagating anything it throws so the loop, and every
+         * other connection on it, carries on.  Connection tasks close their own connection when they fail.
+         * @param task the task to run.
+         */
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                m_server.showServerLogOutput("Error in " + getName() + " task:  " + e);
+            }
+        }
+
+        /**
+         * Takes ownership of a newly accepted channel.
+         * @param channel the channel to service.
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection conn = new NioConnection(this, channel);
+                    conn.m_key = channel.register(m_selector, SelectionKey.OP_READ, conn);
+                    m_server.watch(conn);
+                } catch (IOException e) {
+                    m_server.showServerLogOutput("Error registering new client:  " + e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (m_running) {
+                try {
+                    select();
+                } catch (IOException e) {
+                    m_server.showServerLogOutput("Selector failure on " + getName() + ":  " + e);
+                    break;
+                }
+
+                // Run anything handed over from other threads.
+                Runnable task;
+                while ((task = m_tasks.poll()) != null) {
+                    runTask(task);
+                }
+                runDelayed();
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed by another thread while being serviced, whoever closed it removes it.
+                    } catch (RuntimeException e) {
+                        conn.failed(e);
+                    }
+                }
+            }
+
+            // Shutting down, release every channel this loop owns.
+            for (SelectionKey key : m_selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            try {
+                m_selector.close();
+            } catch (IOException ioe) {
+                // Nothing useful to do, we are done with it.
+            }
+        }
+    }
+
+    /** A task waiting in an event loop for its deadline. */
+    private static class DelayedTask {
+
+        /** The {@link System#nanoTime()} at which to run the task. */
+        final long deadline;
+
+        /** The task to run. */
+        final Runnable task;
+
+        /**
+         * Constructor.
+         * @param deadline the time at which to run the task.
+         * @param task the task to run.
+         */
+        DelayedTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any error.
+     * @param channel the channel to close.
+     */
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            // Already closing, nothing more to do.
+        }
+    }
+
+    /** A client connection serviced by an event loop. */
+    private class NioConnection extends ClientConnection {
+
+        /** The event loop that owns this connection. */
+        private final EventLoop m_loop;
+
+        /** The channel to the client. */
+        private final SocketChannel m_channel;
+
+        /** The address of the client, captured at accept time so it survives the channel closing. */
+        private final InetAddress m_address;
+
+        /** The selection key of the channel, only touched on the loop thread. */
+        private SelectionKey m_key;
+
+        /** Holds bytes read from the client until a whole frame has arrived, volatile as stats read its size. */
+        private volatile ByteBuffer m_readBuf = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+        /** The frames of the batch being written, only touched on the loop thread. */
+        private final ByteBuffer[] m_batch;
+
+        /** The index of the first frame in the batch not yet fully written. */
+        private int m_batchStart;
+
+        /** The index after the last frame in the batch. */
+        private int m_batchEnd;
+
+        /** The size of the batch being written, volatile as stats read it. */
+        private volatile int m_batchBytes;
+
+        /** The most bytes gathered into one batch. */
+        private final int m_batchLimit;
+
+        /** How long to defer a flush so more frames can join the batch, zero to flush straight away. */
+        private final long m_delayNanos;
+
+        /** Set when the session memory policy asks for the buffers to be trimmed, acted on between frames. */
+        private boolean m_trimRequested;
+
+        /** True while a flush is scheduled or waiting for write readiness. */
+        private final AtomicBoolean m_flushScheduled = new AtomicBoolean(false);
+
+        /** True once the connection has been closed. */
+        private volatile boolean m_closed;
+
+        /** True once the client has sent its username. */
+        private boolean m_loggedIn;
+
+        /**
+         * Constructor.
+         * @param loop the event loop that owns this connection.
+         * @param channel the channel to the client.
+         * @throws IOException if the remote address could not be read.
+         */
+        NioConnection(EventLoop loop, SocketChannel channel) throws IOException {
+            super(NioEngine.this.m_server, Server.nextConnectionId());
+            m_loop = loop;
+            m_channel = channel;
+            m_address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            ServerConfig config = m_server.getConfig();
+            m_batch = new ByteBuffer[config.getWriteBatchFrames()];
+            m_batchLimit = config.getWriteBatchBytes();
+            m_delayNanos = TimeUnit.MICROSECONDS.toNanos(config.getWriteDelayMicros());
+        }
+
+        @Override
+        InetAddress getInetAddress() {
+            return m_address;
+        }
+
+        @Override
+        void messageQueued() {
+            if (m_flushScheduled.compareAndSet(false, true)) {
+                if (m_delayNanos > 0) {
+                    m_loop.schedule(guarded(this::flush), m_delayNanos);
+                } else {
+                    m_loop.execute(guarded(this::flush));
+                }
+            }
+        }
+
+        @Override
+        void closeSocket() {
+            m_closed = true;
+            closeQuietly(m_channel);
+        }
+
+        @Override
+        long getBufferedBytes() {
+            return m_readBuf.capacity() + m_batchBytes;
+        }
+
+        @Override
+        void trimBuffers() {
+            // Always called on the loop thread, but possibly mid-way through the read buffer, so defer it.
+            m_trimRequested = true;
+        }
+
+        /** Shrinks an oversized read buffer back to its initial size if what it holds will fit. */
+        private void trimIfRequested() {
+            if (!m_trimRequested) {
+                return;
+            }
+            m_trimRequested = false;
+            if (m_readBuf.capacity() > READ_BUFFER_BYTES && m_readBuf.position() <= READ_BUFFER_BYTES) {
+                ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                m_readBuf.flip();
+                smaller.put(m_readBuf);
+                m_readBuf = smaller;
+            }
+        }
+
+        /**
+         * Moves as many queued frames as the batch limits allow into the batch.
+         * @return true if there is anything to write.
+         */
+        private boolean fillBatch() {
+            m_batchStart = 0;
+            m_batchEnd = 0;
+            int bytes = 0;
+            EncodedFrame frame;
+            while (m_batchEnd < m_batch.length && bytes < m_batchLimit && (frame = m_outbound.poll()) != null) {
+                m_batch[m_batchEnd++] = frame.buffer();
+                bytes += frame.length();
+            }
+            m_batchBytes = bytes;
+            return m_batchEnd > 0;
+        }
+
+        /**
+         * Drains the outbound queue into the socket a batch at a time, waiting for write readiness if the socket
+         * buffer fills.
+         */
+        private void flush() {
+            if (m_closed || m_key == null || !m_key.isValid()) {
+                return;
+            }
+            try {
+                while (m_batchStart < m_batchEnd || fillBatch()) {
+                    m_channel.write(m_batch, m_batchStart, m_batchEnd - m_batchStart);
+                    while (m_batchStart < m_batchEnd && !m_batch[m_batchStart].hasRemaining()) {
+                        recordTraffic(m_batch[m_batchStart].capacity());
+                        m_batch[m_batchStart++] = null;
+                    }
+                    if (m_batchStart < m_batchEnd) {
+                        // Socket buffer is full, finish when the channel becomes writable again.
+                        setInterest(SelectionKey.OP_WRITE, true);
+                        reportQueueDepth();
+                        return;
+                    }
+                    m_batchBytes = 0;
+                }
+                trimIfRequested();
+                reportQueueDepth();
+                setInterest(SelectionKey.OP_WRITE, false);
+                m_flushScheduled.set(false);
+
+                // Catch anything queued between draining and clearing the flag.
+                if (m_outbound.size() > 0) {
+                    messageQueued();
+                }
+            } catch (IOException e) {
+                m_server.showServerLogOutput("Error sending message to " + username);
+                m_server.showServerLogOutput(e.toString());
+                disconnected();
+            }
+        }
+
+        /** Reads whatever the client has sent and dispatches every complete frame. */
+        private void onReadable() {
+            try {
+                if (m_channel.read(m_readBuf) < 0) {
+                    m_server.showServerLogOutput(username + " closed the connection.");
+                    disconnected();
+                    return;
+                }
+                dispatchFrames();
+            } catch (IOException e) {
+                m_server.showServerLogOutput(username + " Exception reading Streams: " + e);
+                disconnected();
+            }
+        }
+
+        /** Starts reading from the client again once its rate limit allows, beginning with the frames already read. */
+        private void resumeReading() {
+            if (m_closed || !setInterest(SelectionKey.OP_READ, true)) {
+                return;
+            }
+            try {
+                dispatchFrames();
+            } catch (IOException e) {
+                m_server.showServerLogOutput(username + " Exception reading Streams: " + e);
+                disconnected();
+            }
+        }
+
+        /**
+         * Dispatches every complete frame in the read buffer.  If the client's rate limit asks for a frame to be
+         * delayed, it is left in the buffer and reading stops until the delay has passed.
+         * @throws IOException if a frame is invalid.
+         */
+        private void dispatchFrames() throws IOException {
+            m_readBuf.flip();
+            int needed = 0;
+            while (m_readBuf.remaining() >= WireCodec.HEADER_BYTES) {
+                int frameStart = m_readBuf.position();
+                int length = m_readBuf.getInt(frameStart);
+                WireCodec.checkLength(length);
+                if (m_readBuf.remaining() < WireCodec.HEADER_BYTES + length) {
+                    needed = WireCodec.HEADER_BYTES + length;
+                    break;
+                }
+                int start = frameStart + WireCodec.HEADER_BYTES;
+                m_readBuf.position(start + length);
+                ChatMessage msg = WireCodec.decodePayload(m_readBuf.array(), m_readBuf.arrayOffset() + start, length);
+                long wait = m_loggedIn ? m_server.throttle(this, msg, WireCodec.HEADER_BYTES + length) : 0;
+                if (wait > 0) {
+                    m_readBuf.position(frameStart);
+                    setInterest(SelectionKey.OP_READ, false);
+                    m_loop.schedule(guarded(this::resumeReading), wait);
+                    break;
+                }
+                if (wait == 0) {
+                    dispatch(msg);
+                }
+                if (m_closed) {
+                    return;
+                }
+                recordTraffic(WireCodec.HEADER_BYTES + length);
+            }
+            m_readBuf.compact();
+            trimIfRequested();
+
+            // Grow the buffer if the frame being received will not fit.
+            if (needed > m_readBuf.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                m_readBuf.flip();
+                bigger.put(m_readBuf);
+                m_readBuf = bigger;
+            }
+        }
+
+        /**
+         * Handles a single decoded message from the client.
+         * @param msg the decoded message.
+         * @throws IOException if the client did not log in with its first message.
+         */
+        private void dispatch(ChatMessage msg) throws IOException {
+            if (!m_loggedIn) {
+                // The first frame from a client must be its username, or from a peer server its node id.
+                m_loggedIn = true;
+                try {
+                    if (!m_server.handleFirstMessage(this, msg, null)) {
+                        close();
+                    }
+                } catch (RuntimeException e) {
+                    // It may have been registered before failing, so remove it as well as closing it.
+                    failed(e);
+                }
+                return;
+            }
+            try {
+                if (!m_server.handleMessage(this, msg)) {
+                    disconnected();
+                }
+            } catch (RuntimeException e) {
+                m_server.showServerLogOutput("Error occured processing message for client:  " + username);
+            }
+        }
+
+        /**
+         * Turns an interest in reading or writing on or off, unless the channel has been closed, possibly by another
+         * thread such as a heartbeat reap, which cancels the key.
+         * @param op the operation, OP_READ or OP_WRITE.
+         * @param on true to turn the interest on.
+         * @return true if the interest was changed, false if the key is no longer valid.
+         */
+        private boolean setInterest(int op, boolean on) {
+            try {
+                if (m_key.isValid()) {
+                    m_key.interestOps(on ? m_key.interestOps() | op : m_key.interestOps() & ~op);
+                    return true;
+                }
+            } catch (CancelledKeyException e) {
+                // Cancelled between the check and the change.
+            }
+            return false;
+        }
+
+        /**
+         * Wraps a task for this connection so that anything it throws closes and removes only this connection.
+         * @param task the task.
+         * @return the wrapped task.
+         */
+        private Runnable guarded(Runnable task) {
+            return () -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    failed(e);
+                }
+            };
+        }
+
+        /**
+         * Logs an unexpected error servicing this connection, then closes and removes it.
+         * @param e the error.
+         */
+        private void failed(RuntimeException e) {
+            try {
+                m_server.showServerLogOutput("Error servicing connection " + id + " (" + username + "), disconnecting:  " + e);
+                disconnected();
+            } catch (RuntimeException again) {
+                // Removing it failed too, at least release the channel.
+                closeSocket();
+            }
+        }
+
+        /** Removes this client from the server and closes the connection. */
+        private void disconnected() {
+            close();
+            m_server.remove(id);
+        }
+    }
+}
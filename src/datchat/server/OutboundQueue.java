@@ -0,0 +1,264 @@
+package datchat.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded queue of messages waiting to be written to a single client.  Producers (broadcasts) never wait on the
+ * client's socket, only on this queue, and then only under the {@link OverflowPolicy#BLOCK} policy.
+ *
+ * @author adam
+ * @param <E> the type of queued message.
+ */
+class OutboundQueue<E> {
+
+    /** The queued messages, oldest first. */
+    private final ArrayDeque<E> m_items;
+
+    /** The most messages this queue will hold. */
+    private volatile int m_capacity;
+
+    /** What to do when a message is offered to a full queue. */
+    private final OverflowPolicy m_policy;
+
+    /** How long a producer may wait for room under the BLOCK policy. */
+    private final long m_blockNanos;
+
+    /** Guards the queue state, a lock rather than a monitor so virtual thread writers do not pin. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** Signalled when a message is added or the queue is closed. */
+    private final Condition m_notEmpty = m_lock.newCondition();
+
+    /** Signalled when a message is removed or the queue is closed. */
+    private final Condition m_notFull = m_lock.newCondition();
+
+    /** Gives the size in bytes of a queued message, for memory accounting. */
+    private final ToIntFunction<E> m_weigher;
+
+    /** The total size in bytes of the queued messages. */
+    private long m_bytes;
+
+    /** The number of messages discarded by the DROP_OLDEST policy. */
+    private long m_dropped;
+
+    /** True once the queue has been closed. */
+    private volatile boolean m_closed;
+
+    /**
+     * Constructor.
+     * @param capacity the most messages this queue will hold.
+     * @param policy what to do when a message is offered to a full queue.
+     * @param blockMillis how long a producer may wait for room under the BLOCK policy.
+     * @param weigher gives the size in bytes of a queued message.
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockMillis, ToIntFunction<E> weigher) {
+        m_capacity = Math.max(1, capacity);
+        m_items = new ArrayDeque<>(Math.min(m_capacity, 64));
+        m_policy = policy;
+        m_weigher = weigher;
+        m_blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+    }
+
+    /**
+     * Changes the most messages this queue will hold.  Messages already queued beyond a lowered capacity are kept.
+     * @param capacity the new capacity, values below one are treated as one.
+     */
+    void setCapacity(int capacity) {
+        m_lock.lock();
+        try {
+            m_capacity = Math.max(1, capacity);
+            m_notFull.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a message to the queue, applying the overflow policy if it is full.
+     * @param item the message to add.
+     * @return true if the message was queued, false if the client should be disconnected.
+     */
+    boolean offer(E item) {
+        m_lock.lock();
+        try {
+            if (m_closed) {
+                return false;
+            }
+            if (m_items.size() >= m_capacity) {
+                switch (m_policy) {
+                    case DROP_OLDEST:
+                        m_bytes -= m_weigher.applyAsInt(m_items.poll());
+                        m_dropped++;
+                        break;
+                    case DISCONNECT:
+                        return false;
+                    case BLOCK:
+                        long nanos = m_blockNanos;
+                        while (m_items.size() >= m_capacity && !m_closed) {
+                            if (nanos <= 0) {
+                                return false;
+                            }
+                            nanos = m_notFull.awaitNanos(nanos);
+                        }
+                        if (m_closed) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+            m_items.add(item);
+            m_bytes += m_weigher.applyAsInt(item);
+            m_notEmpty.signal();
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting for one to arrive if the queue is empty.
+     * @return the oldest message, or null if the queue has been closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    E take() throws InterruptedException {
+        m_lock.lock();
+        try {
+            while (m_items.isEmpty() && !m_closed) {
+                m_notEmpty.await();
+            }
+            if (m_closed) {
+                return null;
+            }
+            E item = m_items.poll();
+            m_bytes -= m_weigher.applyAsInt(item);
+            m_notFull.signal();
+            return item;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting up to the supplied time for one to arrive if the queue is empty.
+     * @param nanos the longest time to wait, zero or less to not wait at all.
+     * @return the oldest message, or null if none arrived in time or the queue has been closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    E poll(long nanos) throws InterruptedException {
+        m_lock.lock();
+        try {
+            while (m_items.isEmpty() && !m_closed) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = m_notEmpty.awaitNanos(nanos);
+            }
+            if (m_closed) {
+                return null;
+            }
+            E item = m_items.poll();
+            m_bytes -= m_weigher.applyAsInt(item);
+            m_notFull.signal();
+            return item;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message without waiting.
+     * @return the oldest message, or null if the queue is empty or closed.
+     */
+    E poll() {
+        m_lock.lock();
+        try {
+            if (m_closed) {
+                return null;
+            }
+            E item = m_items.poll();
+            if (item != null) {
+                m_bytes -= m_weigher.applyAsInt(item);
+                m_notFull.signal();
+            }
+            return item;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued messages.
+     * @return the number of queued messages.
+     */
+    int size() {
+        m_lock.lock();
+        try {
+            return m_items.size();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size in bytes of the queued messages.
+     * @return the total size in bytes of the queued messages.
+     */
+    long getQueuedBytes() {
+        m_lock.lock();
+        try {
+            return m_bytes;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most messages this queue will hold.
+     * @return the most messages this queue will hold.
+     */
+    int capacity() {
+        return m_capacity;
+    }
+
+    /**
+     * Returns the number of messages discarded by the DROP_OLDEST policy.
+     * @return the number of messages discarded.
+     */
+    long getDropped() {
+        m_lock.lock();
+        try {
+            return m_dropped;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the queue has been closed.
+     * @return true if the queue has been closed.
+     */
+    boolean isClosed() {
+        return m_closed;
+    }
+
+    /** Closes the queue, discarding anything queued and releasing any waiting producer or consumer. */
+    void close() {
+        m_lock.lock();
+        try {
+            m_closed = true;
+            m_items.clear();
+            m_bytes = 0;
+            m_notEmpty.signalAll();
+            m_notFull.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package datchat.server;
+
+/**
+ * What a client's outbound queue does when a message arrives and the queue is already full.
+ * @author adam
+ */
+public enum OverflowPolicy {
+    /** Discard the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+    /** Treat the client as dead and disconnect it. */
+    DISCONNECT,
+    /**
+     * Wait for room, up to the configured timeout, then disconnect the client.  In NIO mode the queue can only drain
+     * on the selector thread that would be waiting, so there this is treated as DISCONNECT.
+     */
+    BLOCK;
+}
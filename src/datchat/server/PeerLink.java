@@ -0,0 +1,78 @@
+package datchat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A link to a peer server, carried by an ordinary connection, and the relay statistics kept for it.
+ * @author adam
+ */
+class PeerLink {
+
+    /** The weight of each new latency sample in the smoothed latency, as a shift (one eighth). */
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    /** The connection the link is carried on. */
+    final ClientConnection connection;
+    /** The node id of the peer server. */
+    final String nodeId;
+    /** The address this server dialed to reach the peer, null if the peer dialed this server. */
+    final String address;
+    /** Relayed messages received and accepted. */
+    private final AtomicLong m_received = new AtomicLong();
+    /** Relayed messages sent. */
+    private final AtomicLong m_sent = new AtomicLong();
+    /** Relayed messages received and dropped as duplicates. */
+    private final AtomicLong m_duplicates = new AtomicLong();
+    /** The smoothed latency in microseconds, only updated under the server's broadcast lock. */
+    private volatile long m_latencyMicros;
+    /** The longest latency in microseconds, only updated under the server's broadcast lock. */
+    private volatile long m_maxLatencyMicros;
+
+    /**
+     * Constructor.
+     * @param connection the connection the link is carried on.
+     * @param nodeId the node id of the peer server.
+     * @param address the address dialed, null if the peer dialed this server.
+     */
+    PeerLink(ClientConnection connection, String nodeId, String address) {
+        this.connection = connection;
+        this.nodeId = nodeId;
+        this.address = address;
+    }
+
+    /**
+     * Records a relayed message accepted from the peer.
+     * @param latencyMicros how long the message took to cross the link.
+     */
+    void received(long latencyMicros) {
+        long sample = Math.max(0, latencyMicros);
+        long smoothed = m_received.getAndIncrement() == 0 ? sample
+                : m_latencyMicros + ((sample - m_latencyMicros) >> LATENCY_SMOOTHING_SHIFT);
+        m_latencyMicros = smoothed;
+        m_maxLatencyMicros = Math.max(m_maxLatencyMicros, sample);
+    }
+
+    /** Records a relayed message from the peer dropped as a duplicate. */
+    void duplicate() {
+        m_duplicates.incrementAndGet();
+    }
+
+    /**
+     * Queues a relayed message to the peer.
+     * @param frame the encoded RELAY.
+     * @return false if the link could not keep up and has been closed.
+     */
+    boolean send(EncodedFrame frame) {
+        m_sent.incrementAndGet();
+        return connection.writeFrame(frame);
+    }
+
+    /**
+     * Returns a snapshot of the link's traffic.
+     * @return the link statistics.
+     */
+    LinkStats getStats() {
+        return new LinkStats(nodeId, address, m_received.get(), m_sent.get(), m_duplicates.get(), m_latencyMicros,
+                m_maxLatencyMicros, connection.m_outbound.size(), connection.m_outbound.getQueuedBytes());
+    }
+}
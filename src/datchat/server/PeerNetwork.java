@@ -0,0 +1,251 @@
+package datchat.server;
+
+import datchat.ChatMessage;
+import datchat.MessageType;
+import datchat.OnlineStatus;
+import datchat.Relay;
+import datchat.UserStatus;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This server's links to its peer servers, which join several servers into one chat network.  Server-wide chat and
+ * user statuses are flooded over every link: a server stamps each message it starts with its node id and its next
+ * sequence number, passes on every message it has not seen before to every link but the one it arrived on, and drops
+ * the copies that reach it by other paths.  Any shape of network works, rings and meshes included.
+ * <p>
+ * Each server is the authority for its own users.  When a link comes up, or goes down and takes with it the users
+ * last heard of through it, a PEER_RESYNC asks every server still reachable to announce its users again.
+ * <p>
+ * Not thread safe, the server only touches it while holding its broadcast lock.
+ * @author adam
+ */
+class PeerNetwork {
+
+    /** The server the links belong to. */
+    private final Server m_server;
+
+    /** The links, safe to read for statistics without the server's lock. */
+    private final List<PeerLink> m_links = new CopyOnWriteArrayList<>();
+
+    /** The sequence numbers recently seen, by origin node id. */
+    private final Map<String, ReplayWindow> m_windows = new HashMap<>();
+
+    /** The users of each other server, by origin node id and then user key. */
+    private final Map<String, Map<String, UserStatus>> m_remoteUsers = new HashMap<>();
+
+    /** The link each origin was last heard from through. */
+    private final Map<String, PeerLink> m_via = new HashMap<>();
+
+    /** The name this server goes by on its links. */
+    private String m_nodeId;
+
+    /** The last sequence number used. */
+    private long m_sequence;
+
+    /**
+     * Constructor.
+     * @param server the server the links belong to.
+     */
+    PeerNetwork(Server server) {
+        m_server = server;
+    }
+
+    /**
+     * Sets the name this server goes by, and starts its sequence numbers from the current time in microseconds so a
+     * restarted server carries on above the numbers it used before.
+     * @param nodeId the node id.
+     */
+    void start(String nodeId) {
+        m_nodeId = nodeId;
+        m_sequence = Math.max(m_sequence, nowMicros());
+    }
+
+    /**
+     * Returns the name this server goes by on its links.
+     * @return the node id.
+     */
+    String getNodeId() {
+        return m_nodeId;
+    }
+
+    /**
+     * Adds a link once both ends have exchanged node ids.  Two servers may be joined by more than one link, copies
+     * arriving over the second are dropped like any other.
+     * @param connection the connection carrying the link.
+     * @param nodeId the node id of the peer.
+     * @param address the address dialed, null if the peer dialed this server.
+     * @return the link, or null if the peer is this server.
+     */
+    PeerLink linkUp(ClientConnection connection, String nodeId, String address) {
+        if (nodeId == null || nodeId.equals(m_nodeId)) {
+            return null;
+        }
+        PeerLink link = new PeerLink(connection, nodeId, address);
+        connection.peer = link;
+        connection.m_outbound.setCapacity(connection.m_server.getConfig().getLinkQueueCapacity());
+        m_links.add(link);
+        return link;
+    }
+
+    /**
+     * Removes a link, forgetting the users of every server last heard of through it.
+     * @param connectionId the id of the connection carrying the link.
+     * @return OFFLINE statuses for the forgotten users, or null if the connection was not a link.
+     */
+    List<UserStatus> linkDown(int connectionId) {
+        PeerLink link = null;
+        for (PeerLink candidate : m_links) {
+            if (candidate.connection.id == connectionId) {
+                link = candidate;
+            }
+        }
+        if (link == null || !m_links.remove(link)) {
+            return null;
+        }
+        List<UserStatus> lost = new ArrayList<>();
+        Iterator<Map.Entry<String, PeerLink>> via = m_via.entrySet().iterator();
+        while (via.hasNext()) {
+            Map.Entry<String, PeerLink> entry = via.next();
+            if (entry.getValue() != link) {
+                continue;
+            }
+            via.remove();
+            Map<String, UserStatus> users = m_remoteUsers.remove(entry.getKey());
+            if (users != null) {
+                for (UserStatus user : users.values()) {
+                    lost.add(new UserStatus(user.user, user.hostname, user.address, user.sinceTime, OnlineStatus.OFFLINE, null));
+                }
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Returns the links.
+     * @return the links.
+     */
+    List<PeerLink> getLinks() {
+        return m_links;
+    }
+
+    /**
+     * Returns the users known to be on other servers.
+     * @return their ONLINE statuses.
+     */
+    List<UserStatus> getRemoteUsers() {
+        List<UserStatus> users = new ArrayList<>();
+        for (Map<String, UserStatus> origin : m_remoteUsers.values()) {
+            users.addAll(origin.values());
+        }
+        return users;
+    }
+
+    /**
+     * Starts a message from this server on its way to every peer.
+     * @param msg a server-wide CHAT_LINE or USER_STATUS, or a PEER_RESYNC.
+     */
+    void publish(ChatMessage msg) {
+        if (!m_links.isEmpty()) {
+            send(new Relay(m_nodeId, ++m_sequence, 0, msg), null);
+        }
+    }
+
+    /**
+     * Accepts a message relayed by a peer, passing it on to the other peers unless it has been seen before.
+     * @param link the link it arrived on.
+     * @param relay the relayed message.
+     * @return the message to deliver to this server's clients, or null if it is a duplicate.
+     */
+    ChatMessage receive(PeerLink link, Relay relay) {
+        if (relay.origin == null || relay.origin.equals(m_nodeId)
+                || !m_windows.computeIfAbsent(relay.origin, (o) -> new ReplayWindow()).accept(relay.sequence)) {
+            link.duplicate();
+            return null;
+        }
+        link.received(nowMicros() - relay.sentTime);
+        m_via.put(relay.origin, link);
+        ChatMessage msg = relay.message;
+        if (msg.getType() == MessageType.USER_STATUS && ((UserStatus) msg.getMessage()).room == null) {
+            UserStatus status = (UserStatus) msg.getMessage();
+            Map<String, UserStatus> users = m_remoteUsers.computeIfAbsent(relay.origin, (o) -> new LinkedHashMap<>());
+            if (status.status == OnlineStatus.OFFLINE) {
+                users.remove(status.getUserKey());
+            } else {
+                users.put(status.getUserKey(), status);
+            }
+        }
+        send(relay, link);
+        return msg;
+    }
+
+    /**
+     * Encodes a relayed message once, stamped with the time it is sent on this hop, and queues it to every link but
+     * the one it arrived on.  Links that cannot keep up are dropped.
+     * @param relay the message to send.
+     * @param arrival the link it arrived on, null if it started here.
+     */
+    private void send(Relay relay, PeerLink arrival) {
+        Relay hop = new Relay(relay.origin, relay.sequence, nowMicros(), relay.message);
+        EncodedFrame frame = EncodedFrame.encode(new ChatMessage(MessageType.RELAY, hop));
+        List<PeerLink> failed = new ArrayList<>();
+        for (PeerLink link : m_links) {
+            if (link != arrival && !link.send(frame)) {
+                failed.add(link);
+            }
+        }
+        for (PeerLink link : failed) {
+            m_server.showServerLogOutput("Peer server " + link.nodeId + " could not keep up, dropping the link.");
+            m_server.remove(link.connection.id);
+        }
+    }
+
+    /**
+     * Returns the current time in microseconds since the epoch, the resolution latencies are measured at.
+     * @return the time in microseconds.
+     */
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+    }
+
+    /**
+     * The sequence numbers recently seen from one origin: the highest, and a bit for each of the 63 before it.  A
+     * message more than 63 behind the newest from its origin is treated as a duplicate, on a healthy network every
+     * path delivers well within that.
+     */
+    private static class ReplayWindow {
+
+        /** The highest sequence number seen. */
+        private long m_highest;
+
+        /** Bit n is set if m_highest - n has been seen. */
+        private long m_seen;
+
+        /**
+         * Records a sequence number.
+         * @param sequence the sequence number.
+         * @return true if it had not been seen before.
+         */
+        boolean accept(long sequence) {
+            if (sequence > m_highest) {
+                long shift = sequence - m_highest;
+                m_seen = shift >= Long.SIZE ? 1 : (m_seen << shift) | 1;
+                m_highest = sequence;
+                return true;
+            }
+            long age = m_highest - sequence;
+            if (age >= Long.SIZE || (m_seen & (1L << age)) != 0) {
+                return false;
+            }
+            m_seen |= 1L << age;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package datchat.server;
+
+import datchat.OnlineStatus;
+import datchat.UserStatus;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Coalesces server-wide user status changes over a short window, so that a burst of connects and disconnects reaches
+ * clients as one PRESENCE_DELTA per window rather than a message per change.  Only the net change since clients were
+ * last told is sent: a user who drops and reconnects within a window, or who is announced again when the peer links
+ * resync, produces nothing at all.  A user announced again with a newly resolved hostname is sent as a change.
+ * <p>
+ * Not thread safe, the server only touches it while holding its broadcast lock.
+ * @author adam
+ */
+class PresenceAggregator {
+
+    /** The users clients have been told are online, by user and address. */
+    private final Map<String, UserStatus> m_online = new HashMap<>();
+
+    /** The latest status of each user that has changed since the last delta, by user and address. */
+    private final Map<String, UserStatus> m_pending = new LinkedHashMap<>();
+
+    /** The number of changes that cancelled out or repeated what clients already knew. */
+    private long m_suppressed;
+
+    /**
+     * Records a change of status.
+     * @param status the user's new server-wide status.
+     * @return true if this is the first change since the last delta, and a delta should be scheduled.
+     */
+    boolean add(UserStatus status) {
+        boolean first = m_pending.isEmpty();
+        m_pending.put(status.getUserKey(), status);
+        return first;
+    }
+
+    /**
+     * Returns the net changes since the last delta and starts a new window.
+     * @return the statuses that differ from what clients were last told, and who has come and gone.
+     */
+    Delta drain() {
+        Delta delta = new Delta();
+        for (Map.Entry<String, UserStatus> change : m_pending.entrySet()) {
+            UserStatus status = change.getValue();
+            UserStatus known = m_online.get(change.getKey());
+            if (status.status == OnlineStatus.ONLINE && known == null) {
+                m_online.put(change.getKey(), status);
+                delta.statuses.add(status);
+                delta.connected.add(status.user);
+            } else if (status.status == OnlineStatus.ONLINE && !Objects.equals(known.hostname, status.hostname)) {
+                m_online.put(change.getKey(), status);
+                delta.statuses.add(status);
+            } else if (status.status == OnlineStatus.OFFLINE && known != null) {
+                m_online.remove(change.getKey());
+                delta.statuses.add(status);
+                delta.disconnected.add(status.user);
+            } else {
+                m_suppressed++;
+            }
+        }
+        m_pending.clear();
+        return delta;
+    }
+
+    /**
+     * Returns the number of changes that were never sent because they cancelled out or were already known.
+     * @return the suppressed change count.
+     */
+    long getSuppressed() {
+        return m_suppressed;
+    }
+
+    /** Forgets every user, for a server that is stopping. */
+    void clear() {
+        m_online.clear();
+        m_pending.clear();
+    }
+
+    /** The net changes of one window. */
+    static class Delta {
+
+        /** The statuses to send, arrivals, departures and new hostnames. */
+        final List<UserStatus> statuses = new ArrayList<>();
+
+        /** The usernames that have arrived. */
+        final List<String> connected = new ArrayList<>();
+
+        /** The usernames that have gone. */
+        final List<String> disconnected = new ArrayList<>();
+    }
+}
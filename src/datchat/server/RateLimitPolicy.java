@@ -0,0 +1,14 @@
+package datchat.server;
+
+/**
+ * What the server does with a message from a client that is sending faster than its rate limit allows.
+ * @author adam
+ */
+public enum RateLimitPolicy {
+    /** Hold the message until the limit allows it, and read nothing more from the client meanwhile. */
+    DELAY,
+    /** Discard the message, telling the client once per run of discarded messages. */
+    DROP_WITH_NOTICE,
+    /** Treat the client as abusive and disconnect it. */
+    DISCONNECT;
+}
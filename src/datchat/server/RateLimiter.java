@@ -0,0 +1,89 @@
+package datchat.server;
+
+/**
+ * Limits the messages and bytes a client may send with a pair of token buckets.  Each bucket fills at its rate up to
+ * a burst's worth of tokens, and a message takes one token from the message bucket and a token per byte from the byte
+ * bucket.  Tokens are refilled lazily, from the time elapsed, when a message is charged.
+ * <p>
+ * Not thread safe, a connection's limiter is only used by the thread reading from it.
+ * @author adam
+ */
+class RateLimiter {
+
+    /** Messages per nanosecond, zero if messages are not limited. */
+    private final double m_messageRate;
+
+    /** Bytes per nanosecond, zero if bytes are not limited. */
+    private final double m_byteRate;
+
+    /** The most message tokens the bucket holds. */
+    private final double m_messageBurst;
+
+    /** The most byte tokens the bucket holds. */
+    private final double m_byteBurst;
+
+    /** The message tokens in the bucket. */
+    private double m_messages;
+
+    /** The byte tokens in the bucket. */
+    private double m_bytes;
+
+    /** The {@link System#nanoTime()} the buckets were last refilled. */
+    private long m_refilled;
+
+    /**
+     * Constructor, the buckets start full.
+     * @param messagesPerSecond the sustained message rate, zero for no limit.
+     * @param bytesPerSecond the sustained byte rate, zero for no limit.
+     * @param burstSeconds how many seconds' worth of messages and bytes may be sent at once.
+     */
+    RateLimiter(int messagesPerSecond, int bytesPerSecond, int burstSeconds) {
+        m_messageRate = messagesPerSecond / 1e9;
+        m_byteRate = bytesPerSecond / 1e9;
+        m_messageBurst = Math.max(1, (double) messagesPerSecond * burstSeconds);
+        m_byteBurst = Math.max(1, (double) bytesPerSecond * burstSeconds);
+        m_messages = m_messageBurst;
+        m_bytes = m_byteBurst;
+        m_refilled = System.nanoTime();
+    }
+
+    /**
+     * Returns a limiter for the configured rates.
+     * @param config the server configuration.
+     * @return the limiter, or null if neither messages nor bytes are limited.
+     */
+    static RateLimiter create(ServerConfig config) {
+        if (config.getRateMessagesPerSecond() == 0 && config.getRateBytesPerSecond() == 0) {
+            return null;
+        }
+        return new RateLimiter(config.getRateMessagesPerSecond(), config.getRateBytesPerSecond(), config.getRateBurstSeconds());
+    }
+
+    /**
+     * Charges a message against the limits if both allow it now.  A message larger than a burst is charged a whole
+     * burst, so it waits for a full bucket rather than forever.
+     * @param bytes the size of the message on the wire.
+     * @return zero if the message was charged, otherwise the nanoseconds until it could be.
+     */
+    long acquire(int bytes) {
+        long now = System.nanoTime();
+        long elapsed = now - m_refilled;
+        m_refilled = now;
+        m_messages = Math.min(m_messageBurst, m_messages + elapsed * m_messageRate);
+        m_bytes = Math.min(m_byteBurst, m_bytes + elapsed * m_byteRate);
+        double cost = Math.min(bytes, m_byteBurst);
+        long wait = 0;
+        if (m_messageRate > 0 && m_messages < 1) {
+            wait = (long) Math.ceil((1 - m_messages) / m_messageRate);
+        }
+        if (m_byteRate > 0 && m_bytes < cost) {
+            wait = Math.max(wait, (long) Math.ceil((cost - m_bytes) / m_byteRate));
+        }
+        if (wait == 0) {
+            // An unlimited bucket is never refilled or checked, so leave it alone.
+            m_messages -= m_messageRate > 0 ? 1 : 0;
+            m_bytes -= m_byteRate > 0 ? cost : 0;
+        }
+        return wait;
+    }
+}
@@ -0,0 +1,60 @@
+package datchat.server;
+
+/**
+ * A snapshot of the server's hostname cache, which turns client addresses into the hostnames shown to users.
+ * @author adam
+ */
+public class ResolverStats {
+
+    /** The number of lookups answered from the cache. */
+    public final long hits;
+    /** The number of lookups that found no name, or only an expired one, and started a resolution. */
+    public final long misses;
+    /** The number of reverse lookups completed. */
+    public final long resolutions;
+    /** The number of reverse lookups that found no name for the address. */
+    public final long failures;
+    /** The average time a reverse lookup has taken, in microseconds. */
+    public final long averageMicros;
+    /** The longest time a reverse lookup has taken, in microseconds. */
+    public final long maxMicros;
+    /** The number of addresses in the cache. */
+    public final int size;
+
+    /**
+     * Constructor.
+     * @param hits the lookups answered from the cache.
+     * @param misses the lookups that started a resolution.
+     * @param resolutions the reverse lookups completed.
+     * @param failures the reverse lookups that found no name.
+     * @param averageMicros the average reverse lookup time.
+     * @param maxMicros the longest reverse lookup time.
+     * @param size the addresses cached.
+     */
+    public ResolverStats(long hits, long misses, long resolutions, long failures, long averageMicros, long maxMicros,
+            int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.resolutions = resolutions;
+        this.failures = failures;
+        this.averageMicros = averageMicros;
+        this.maxMicros = maxMicros;
+        this.size = size;
+    }
+
+    /**
+     * Returns the share of lookups answered from the cache.
+     * @return the hit rate, from zero to one.
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "Hostnames:  " + size + " cached, " + Math.round(getHitRate() * 100) + "% hit rate (" + hits + " hits, "
+                + misses + " misses), " + resolutions + " resolved (" + failures + " without a name), latency "
+                + averageMicros + "us (max " + maxMicros + "us)";
+    }
+}
@@ -0,0 +1,101 @@
+package datchat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The named chat rooms, indexed by room name to the clients subscribed to each.  Posting to a room only touches that
+ * room's members, so routing is O(members) however many clients are connected.  Rooms are created by their first
+ * join and dropped when their last member leaves.
+ * @author adam
+ */
+class RoomRegistry {
+
+    /** Members by room name. */
+    private final ConcurrentHashMap<String, Set<ClientConnection>> m_rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribes a client to a room, creating the room if it does not exist.
+     * @param room the room name.
+     * @param client the client joining.
+     * @return true if the client joined, false if it was already a member.
+     */
+    boolean join(String room, ClientConnection client) {
+        boolean[] joined = new boolean[1];
+        m_rooms.compute(room, (r, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            joined[0] = members.add(client);
+            // Record the room on the client inside the compute, so a leave of this room can never see one without the
+            // other.
+            if (joined[0]) {
+                client.rooms.add(room);
+            }
+            return members;
+        });
+        return joined[0];
+    }
+
+    /**
+     * Unsubscribes a client from a room, dropping the room if it is left empty.
+     * @param room the room name.
+     * @param client the client leaving.
+     * @return true if the client left, false if it was not a member.
+     */
+    boolean leave(String room, ClientConnection client) {
+        boolean[] left = new boolean[1];
+        m_rooms.computeIfPresent(room, (r, members) -> {
+            left[0] = members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+        client.rooms.remove(room);
+        return left[0];
+    }
+
+    /**
+     * Unsubscribes a client from every room it is in, as it disconnects.
+     * @param client the client leaving.
+     * @return the rooms the client left.
+     */
+    List<String> leaveAll(ClientConnection client) {
+        List<String> left = new ArrayList<>();
+        for (String room : client.rooms) {
+            if (leave(room, client)) {
+                left.add(room);
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Returns a weakly consistent, unmodifiable view of the members of a room.
+     * @param room the room name.
+     * @return the members of the room, empty if there is no such room.
+     */
+    Set<ClientConnection> members(String room) {
+        Set<ClientConnection> members = m_rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Returns true if the client is a member of the room.
+     * @param room the room name.
+     * @param client the client.
+     * @return true if the client is a member of the room.
+     */
+    boolean isMember(String room, ClientConnection client) {
+        return client.rooms.contains(room);
+    }
+
+    /**
+     * Returns the number of rooms with at least one member.
+     * @return the number of rooms.
+     */
+    int size() {
+        return m_rooms.size();
+    }
+}
@@ -0,0 +1,308 @@
+package datchat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+/**
+ * The word index of one chat log that is no longer being written, kept in a file beside the log so that the index of
+ * a long archive lives on disk rather than in the heap.  A search reads just the entries for its words from each
+ * log's index file and merges the results.
+ * <p>
+ * The file holds a header with the number of words, then one entry per word in sorted order (the word, its number of
+ * lines, the size of its line offsets and the offsets themselves as gaps), then a block index naming the first word
+ * of every 64th entry and where it starts, and finally the position of the block index.  Looking a word up reads the
+ * block index, seeks to the one block that could hold the word and scans at most 64 entries, skipping the offsets of
+ * the words it passes.
+ * @author adam
+ */
+class SegmentIndex {
+
+    /** Identifies a segment index file. */
+    private static final int MAGIC = 0x44435349;
+
+    /** The segment index file format version. */
+    private static final int VERSION = 1;
+
+    /** The number of entries between block index entries. */
+    private static final int BLOCK_TERMS = 64;
+
+    /** The extension of a segment index file, in place of the log's. */
+    private static final String EXTENSION = ".idx";
+
+    /** Not instantiated, just file format helpers. */
+    private SegmentIndex() {
+    }
+
+    /**
+     * Returns the index file of a log.
+     * @param log the log file.
+     * @return the index file beside it.
+     */
+    static Path pathFor(Path log) {
+        String name = log.getFileName().toString();
+        String base = name.endsWith(".log") ? name.substring(0, name.length() - 4) : name;
+        return log.resolveSibling(base + EXTENSION);
+    }
+
+    /**
+     * Writes a log's index file, replacing any earlier one only once the new one is complete.
+     * @param file the index file.
+     * @param coveredBytes the length of the log the index covers.
+     * @param postings the ascending line offsets within the log of each word, by word.
+     * @throws IOException if the file could not be written.
+     */
+    static void write(Path file, long coveredBytes, SortedMap<String, long[]> postings) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> blockTerms = new ArrayList<>();
+        List<Long> blockOffsets = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(coveredBytes);
+            out.writeInt(postings.size());
+            int entry = 0;
+            ByteBuffer gaps = ByteBuffer.allocate(256);
+            for (Map.Entry<String, long[]> posting : postings.entrySet()) {
+                if (entry++ % BLOCK_TERMS == 0) {
+                    blockTerms.add(posting.getKey());
+                    blockOffsets.add((long) out.size());
+                }
+                long[] offsets = posting.getValue();
+                gaps.clear();
+                long previous = 0;
+                for (long offset : offsets) {
+                    if (gaps.remaining() < 10) {
+                        gaps = ByteBuffer.allocate(gaps.capacity() * 2).put(gaps.flip());
+                    }
+                    putVarLong(gaps, offset - previous);
+                    previous = offset;
+                }
+                out.writeUTF(posting.getKey());
+                out.writeInt(offsets.length);
+                out.writeInt(gaps.position());
+                out.write(gaps.array(), 0, gaps.position());
+            }
+            long blockIndex = out.size();
+            out.writeInt(blockTerms.size());
+            for (int i = 0; i < blockTerms.size(); i++) {
+                out.writeUTF(blockTerms.get(i));
+                out.writeLong(blockOffsets.get(i));
+            }
+            out.writeLong(blockIndex);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the length of the log an index file covers.
+     * @param file the index file.
+     * @return the length of the log it covers, or -1 if there is no usable index file.
+     */
+    static long coveredBytes(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION ? in.readLong() : -1;
+        } catch (IOException ioex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the offsets of the lines in a log containing every one of the supplied words.
+     * @param file the log's index file.
+     * @param terms the words.
+     * @return the ascending line offsets, empty if the index file has gone along with its log.
+     * @throws IOException if the index file could not be read or is corrupt.
+     */
+    static long[] match(Path file, Set<String> terms) throws IOException {
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            DataInputStream header = open(channel, 0);
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Not a chat log index:  " + file);
+            }
+            header.readLong();
+            int entries = header.readInt();
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, channel.size() - 8 + trailer.position()) < 0) {
+                    throw new EOFException("Truncated chat log index:  " + file);
+                }
+            }
+            long blockIndex = trailer.getLong(0);
+            DataInputStream in = open(channel, blockIndex);
+            int blocks = in.readInt();
+            String[] blockTerms = new String[blocks];
+            long[] blockOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockTerms[i] = in.readUTF();
+                blockOffsets[i] = in.readLong();
+            }
+
+            List<long[]> lists = new ArrayList<>(terms.size());
+            for (String term : new TreeSet<>(terms)) {
+                long[] offsets = lookup(channel, blockTerms, blockOffsets, entries, term);
+                if (offsets == null) {
+                    return new long[0];
+                }
+                lists.add(offsets);
+            }
+            return intersect(lists);
+        } catch (NoSuchFileException missing) {
+            return new long[0];
+        }
+    }
+
+    /**
+     * Reads the line offsets of one word.
+     * @param channel the index file.
+     * @param blockTerms the first word of each block.
+     * @param blockOffsets where each block starts.
+     * @param entries the number of words in the file.
+     * @param term the word.
+     * @return the ascending line offsets, or null if the word is not in the log.
+     * @throws IOException if the file could not be read.
+     */
+    private static long[] lookup(FileChannel channel, String[] blockTerms, long[] blockOffsets, int entries, String term)
+            throws IOException {
+        // The last block whose first word is not after the word is the only one that could hold it.
+        int block = Arrays.binarySearch(blockTerms, term);
+        if (block < 0) {
+            block = -block - 2;
+            if (block < 0) {
+                return null;
+            }
+        }
+        int inBlock = Math.min(BLOCK_TERMS, entries - block * BLOCK_TERMS);
+        DataInputStream in = open(channel, blockOffsets[block]);
+        for (int i = 0; i < inBlock; i++) {
+            String entry = in.readUTF();
+            int count = in.readInt();
+            int bytes = in.readInt();
+            int compare = entry.compareTo(term);
+            if (compare > 0) {
+                return null;
+            }
+            if (compare == 0) {
+                long[] offsets = new long[count];
+                long previous = 0;
+                for (int j = 0; j < count; j++) {
+                    previous += readVarLong(in);
+                    offsets[j] = previous;
+                }
+                return offsets;
+            }
+            in.skipNBytes(bytes);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the values found in every one of the supplied ascending arrays.
+     * @param lists the ascending arrays.
+     * @return the values in all of them, ascending.
+     */
+    static long[] intersect(List<long[]> lists) {
+        if (lists.isEmpty()) {
+            return new long[0];
+        }
+        // Start from the shortest array, the result can be no longer than it.
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        long[] result = lists.get(0).clone();
+        int size = result.length;
+        for (int l = 1; l < lists.size() && size > 0; l++) {
+            long[] other = lists.get(l);
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                while (j < other.length && other[j] < result[i]) {
+                    j++;
+                }
+                if (j < other.length && other[j] == result[i]) {
+                    result[kept++] = result[i];
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns a buffered stream reading an index file from a position.
+     * @param channel the index file.
+     * @param position where to start reading.
+     * @return the stream.
+     * @throws IOException if the position could not be set.
+     */
+    private static DataInputStream open(FileChannel channel, long position) throws IOException {
+        channel.position(position);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    }
+
+    /**
+     * Puts a non-negative long into a buffer, seven bits per byte, low bits first.
+     * @param buf the buffer, with room for ten bytes.
+     * @param value the value.
+     */
+    private static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Writes a non-negative long, seven bits per byte, low bits first.
+     * @param out the stream to write to.
+     * @param value the value to write.
+     * @throws IOException if the write fails.
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeVarLong(DataOutput, long)}.
+     * @param in the stream to read from.
+     * @return the value.
+     * @throws IOException if the read fails or the value is malformed.
+     */
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Malformed line position in chat log index.");
+    }
+}
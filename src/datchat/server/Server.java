@@ -1,31 +1,145 @@
 package datchat.server;
 
+import datchat.ChatLine;
 import datchat.ChatMessage;
 import datchat.Datchat;
+import datchat.DirectMessage;
+import datchat.HistoryPage;
+import datchat.HistoryRequest;
 import datchat.MessageType;
 import datchat.OnlineStatus;
+import datchat.PeerHello;
+import datchat.Presence;
+import datchat.Relay;
+import datchat.RoomMessage;
+import datchat.SearchRequest;
+import datchat.SearchResults;
 import datchat.UserStatus;
+import datchat.WireCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * The chat Server shell.
+ * The chat Server shell.  Several servers can be linked into one chat network, see {@link PeerNetwork}.
  * @author adam
  */
 public class Server {
 
+    /** The size of the buffers on each blocking client's socket streams. */
+    private static final int STREAM_BUFFER_BYTES = 8192;
+
     /** a unique ID for each connection. */
-    private static int m_uniqueId = 0;
+    private static final AtomicInteger m_uniqueId = new AtomicInteger();
+
+    /** The connected clients, by connection id and username. */
+    private final ClientRegistry m_clients;
+
+    /** The named rooms and their members. */
+    private final RoomRegistry m_rooms = new RoomRegistry();
+
+    /** The number of lines in a page of search results. */
+    private static final int SEARCH_PAGE_SIZE = 20;
+
+    /** The most lines sent in one page of history. */
+    private static final int HISTORY_PAGE_LIMIT = 100;
+
+    /** The number of threads reading the chat archive for searches and history. */
+    private static final int ARCHIVE_THREADS = 2;
+
+    /** The most archive reads waiting for a thread before clients are told to try again. */
+    private static final int ARCHIVE_QUEUE_CAPACITY = 64;
+
+    /** The length of a tick of the heartbeat timer wheel, the resolution silent connections are noticed at. */
+    private static final int HEARTBEAT_TICK_MILLIS = 1000;
+
+    /** The number of slots on the heartbeat timer wheel, one turn covers this many ticks. */
+    private static final int HEARTBEAT_WHEEL_SLOTS = 512;
+
+    /** The number of threads resolving client hostnames, more than one so a slow lookup does not hold up the rest. */
+    private static final int RESOLVER_THREADS = 2;
+
+    /** Makes the threads of VIRTUAL_THREAD mode, null on a JDK without virtual threads. */
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    /** The most users named in a line saying who has come or gone, the rest are counted. */
+    private static final int PRESENCE_NOTICE_NAMES = 5;
+
+    /** The archive client searches are answered from, null if the server is not keeping one. */
+    private volatile ChatArchive m_archive;
+
+    /** The links to peer servers, guarded by m_lock. */
+    private final PeerNetwork m_peers;
+
+    /** Recent chat messages replayed to newly connected clients, guarded by m_lock. */
+    private final HistoryBuffer m_history;
 
-    /** An array of client threads. */
-    private final ArrayList<ClientThread> m_clientThreads;
+    /** Server-wide status changes waiting for the next presence delta, guarded by m_lock. */
+    private final PresenceAggregator m_presence;
+
+    /** The next heartbeat check of every connection. */
+    private final HashedTimerWheel m_heartbeats;
+
+    /** The hostnames of client addresses, resolved in the background. */
+    private final HostnameCache m_hostnames;
+
+    /** The addresses of the configured peer servers' hosts, the only addresses links are accepted from without the secret. */
+    private volatile Set<InetAddress> m_peerHosts = Collections.emptySet();
+
+    /**
+     * The last chat line id used, started from the current time in microseconds so a restarted server carries on
+     * above the ids it used before.
+     */
+    private final AtomicLong m_lineIds = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+
+    /** The server configuration, including how connections are serviced. */
+    private final ServerConfig m_config;
+
+    /** The selector based connection engine, only used in NIO mode. */
+    private NioEngine m_nioEngine;
+
+    /**
+     * Serializes broadcasts so every client sees messages in the same order.  A ReentrantLock rather than the server
+     * monitor so that virtual threads waiting on a full outbound queue park instead of pinning their carrier thread.
+     * Broadcasts are only encoded and queued for delivery under it, they are handed to the clients once it is released,
+     * so a client whose queue is full under the BLOCK policy never holds up the lock.
+     */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** Broadcasts waiting to be handed to their recipients, in the order they were made under m_lock. */
+    private final ConcurrentLinkedQueue<Delivery> m_deliveries = new ConcurrentLinkedQueue<>();
+
+    /** Held by the one thread handing queued broadcasts to their recipients, so they are handed over in order. */
+    private final ReentrantLock m_deliveryLock = new ReentrantLock();
 
     /** The port to listen for clients on. */
     private int m_port;
@@ -39,18 +153,49 @@ public class Server {
     /** The server socket where we listen for client connections. */
     private ServerSocket m_serverSocket;
     
+    /** Runs periodic server housekeeping such as statistics reports, null while the server is stopped. */
+    private ScheduledExecutorService m_scheduler;
+
+    /**
+     * Reads the chat archive for searches and history, apart from the housekeeping thread so a slow read never holds
+     * up heartbeats or presence.  Null while the server is stopped.
+     */
+    private ExecutorService m_archiveReader;
+    
     /** Someday to be customized by command line args / configuration... */
     private String m_serverName = "SERVER";
 
 
-    /** Creates a new server with the specified port and display. */
+    /** Creates a new server with the default configuration. */
     public Server() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Creates a new server with the supplied configuration.
+     * @param config the server configuration.
+     */
+    public Server(ServerConfig config) {
+        m_config = config;
         m_port = Datchat.DEFAULT_PORT;
-        m_clientThreads = new ArrayList<>();
+        m_clients = new ClientRegistry();
+        m_history = new HistoryBuffer(config.getHistoryMessages(), config.getHistoryBytes());
+        m_peers = new PeerNetwork(this);
+        m_presence = new PresenceAggregator();
+        m_heartbeats = new HashedTimerWheel(HEARTBEAT_TICK_MILLIS, HEARTBEAT_WHEEL_SLOTS);
+        m_hostnames = new HostnameCache(config.getHostnameTtlSeconds(), RESOLVER_THREADS, this::hostnameResolved);
         m_listeners = new ArrayList<>();
         m_continue = new AtomicBoolean(false);
     }
 
+    /**
+     * Sets the archive client searches are answered from.
+     * @param archive the archive, null if there is none.
+     */
+    public void setChatArchive(ChatArchive archive) {
+        m_archive = archive;
+    }
+
     /**
      * Adds a new server listener to this server to be informed of server events.
      * @param sl the listener to add.
@@ -66,9 +211,38 @@ public class Server {
      * @param port the port to connect on.
      */
     public void start(int port) {
-        showServerLogOutput("Starting on port:  " + port);
+        showServerLogOutput("Starting on port:  " + port + " (" + m_config.getMode() + " mode).");
         m_port = port;
         m_continue = new AtomicBoolean(true);
+        startScheduler();
+        startPeerLinks();
+        switch (m_config.getMode()) {
+            case NIO:
+                if (m_config.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+                    showServerLogOutput("The BLOCK overflow policy would stall the selector, disconnecting clients with full queues instead.");
+                }
+                startNio();
+                break;
+            case VIRTUAL_THREAD:
+                if (VIRTUAL_THREADS == null) {
+                    showServerLogOutput("Virtual threads need Java 21 or later, servicing clients with platform threads instead.");
+                }
+                // Run the accept loop on a virtual thread too, and wait here until it finishes as it would have.
+                Thread acceptor = startThread(this::acceptClients, "datchat-accept");
+                try {
+                    acceptor.join();
+                } catch (InterruptedException ie) {
+                    stop();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            default:
+                acceptClients();
+        }
+    }
+
+    /** Accepts clients until the server is stopped, servicing each one with its own blocking thread. */
+    private void acceptClients() {
         try {
             // the socket used by the server
             m_serverSocket = new ServerSocket(m_port);
@@ -84,8 +258,9 @@ public class Server {
                     }
 
                     // make a thread
-                    ClientThread t = new ClientThread(socket);
-                    t.start();                    
+                    ClientThread ct = new ClientThread(socket);
+                    watch(ct);
+                    startThread(ct, "datchat-client-" + ct.id);
                 } catch (Exception e) {
                     // Don't let an error kill the connection thread...
                     showServerLogOutput("Error occured listening for clients:  " + e.getMessage());
@@ -102,6 +277,51 @@ public class Server {
         }
     }
 
+    /**
+     * Starts a thread servicing a blocking connection or the accept loop, virtual in VIRTUAL_THREAD mode when the JDK has them and a platform thread otherwise.
+     * @param task the work the thread does.
+     * @param name the name of the thread.
+     * @return the thread.
+     */
+    private Thread startThread(Runnable task, String name) {
+        Thread thread;
+        if (m_config.getMode() == ServerMode.VIRTUAL_THREAD && VIRTUAL_THREADS != null) {
+            thread = VIRTUAL_THREADS.newThread(task);
+            thread.setName(name);
+        } else {
+            thread = new Thread(task, name);
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns a factory for virtual threads, looked up reflectively so the server still builds and runs on a JDK
+     * older than 21.
+     * @return the factory, or null if this JDK has no virtual threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Runs the selector based engine until the server is stopped. */
+    private void startNio() {
+        m_nioEngine = new NioEngine(this, m_config.getIoThreads());
+        try {
+            m_nioEngine.run(m_port);
+        } catch (IOException e) {
+            String msg = Datchat.CHAT_TIME_FORMATTER.format(System.currentTimeMillis()) + " Exception on new ServerSocket: " + e + "\n";
+            showServerLogOutput(msg);
+        }
+        showServerLogOutput("Closing down all client conections.");
+        closeSockets();
+    }
+
     /** Stop the server. */
     protected void stop() {
         for (ServerListener sl : m_listeners) {
@@ -111,22 +331,315 @@ public class Server {
         closeSockets();
     }
 
+    /** Starts the housekeeping scheduler, the archive readers and any periodic tasks the configuration asks for. */
+    private void startScheduler() {
+        m_scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "datchat-housekeeping");
+            t.setDaemon(true);
+            return t;
+        });
+        m_archiveReader = new ThreadPoolExecutor(ARCHIVE_THREADS, ARCHIVE_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ARCHIVE_QUEUE_CAPACITY), (r) -> {
+            Thread t = new Thread(r, "datchat-archive");
+            t.setDaemon(true);
+            return t;
+        });
+        int statsInterval = m_config.getStatsIntervalSeconds();
+        if (statsInterval > 0) {
+            m_scheduler.scheduleAtFixedRate(guarded(this::reportStats), statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+        int hostnameTtl = m_config.getHostnameTtlSeconds();
+        if (hostnameTtl > 0) {
+            m_scheduler.scheduleAtFixedRate(guarded(m_hostnames::prune), hostnameTtl, hostnameTtl, TimeUnit.SECONDS);
+        }
+        if (m_config.getHeartbeatIntervalSeconds() > 0) {
+            m_scheduler.scheduleAtFixedRate(guarded(m_heartbeats::tick), HEARTBEAT_TICK_MILLIS, HEARTBEAT_TICK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Wraps a periodic housekeeping task so an exception is logged rather than cancelling every later run of it,
+     * which for the heartbeat wheel would leave dead clients unreaped for good.
+     * @param task the task.
+     * @return the wrapped task.
+     */
+    private Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException rex) {
+                rex.printStackTrace();
+                try {
+                    showServerLogOutput("Error in a housekeeping task, it will run again as scheduled:  " + rex);
+                } catch (RuntimeException logFailed) {
+                    // The failure may have been a listener's, it is on the console already.
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts watching a new connection for silence, from before it has logged in so a connection that never does is
+     * dropped too.
+     * @param conn the new connection.
+     */
+    void watch(ClientConnection conn) {
+        if (m_config.getHeartbeatIntervalSeconds() > 0) {
+            m_heartbeats.schedule(() -> checkHeartbeat(conn), TimeUnit.SECONDS.toMillis(m_config.getHeartbeatIntervalSeconds()));
+        }
+    }
+
+    /**
+     * Checks a connection when its heartbeat timeout comes due: drops it if it has been silent too long, sends it a
+     * PING if it has been silent a heartbeat interval, and then schedules the next check.  Receiving a message only
+     * records the time, the check works out from that when it is next due, so the timer wheel is touched once per
+     * interval per connection rather than once per message.
+     * @param conn the connection to check.
+     */
+    private void checkHeartbeat(ClientConnection conn) {
+        if (conn.isClosed()) {
+            return;
+        }
+        long interval = TimeUnit.SECONDS.toNanos(m_config.getHeartbeatIntervalSeconds());
+        long timeout = TimeUnit.SECONDS.toNanos(m_config.getHeartbeatTimeoutSeconds());
+        long now = System.nanoTime();
+        long silent = now - conn.lastHeard;
+        if (silent >= timeout) {
+            showServerLogOutput((conn.username == null ? "Connection " + conn.id : conn.username) + " has not been heard from in "
+                    + TimeUnit.NANOSECONDS.toSeconds(silent) + " seconds, disconnecting.");
+            conn.close();
+            remove(conn.id);
+            return;
+        }
+        long next;
+        if (silent >= interval) {
+            conn.writeMsg(new ChatMessage(MessageType.PING, null));
+            next = Math.min(interval, timeout - silent);
+        } else {
+            next = interval - silent;
+        }
+        m_heartbeats.schedule(() -> checkHeartbeat(conn), TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    /** Names this server on its peer links and starts dialing the configured peers. */
+    private void startPeerLinks() {
+        String nodeId = m_config.getNodeId();
+        if (nodeId == null) {
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName() + ":" + m_port;
+            } catch (UnknownHostException uhe) {
+                nodeId = "localhost:" + m_port;
+            }
+        }
+        m_lock.lock();
+        try {
+            m_peers.start(nodeId);
+        } finally {
+            m_lock.unlock();
+        }
+        resolvePeerHosts();
+        for (String address : m_config.getPeers()) {
+            startThread(() -> dialPeer(address), "datchat-peer-" + address);
+        }
+    }
+
+    /**
+     * Looks up the addresses of the configured peer servers' hosts once, at start, so accepting a link never waits on
+     * a name lookup.
+     */
+    private void resolvePeerHosts() {
+        Set<InetAddress> hosts = new HashSet<>();
+        for (String address : m_config.getPeers()) {
+            String host = address.substring(0, Math.max(0, address.lastIndexOf(':')));
+            try {
+                hosts.addAll(Arrays.asList(InetAddress.getAllByName(host)));
+            } catch (UnknownHostException uhe) {
+                showServerLogOutput("Could not resolve peer server " + address + ", links from it need the peer secret.");
+            }
+        }
+        m_peerHosts = hosts;
+    }
+
+    /**
+     * Decides whether a server that dialed in may link to this one:  it must come from the host of a configured peer,
+     * or present the peer secret.  With neither peers nor a secret configured, no links are accepted.
+     * @param conn the connection the link was asked for on.
+     * @param secret the secret presented, may be null.
+     * @return true if the link is allowed.
+     */
+    private boolean isTrustedPeer(ClientConnection conn, String secret) {
+        String expected = m_config.getPeerSecret();
+        if (expected != null && secret != null
+                && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        return m_peerHosts.contains(conn.getInetAddress());
+    }
+
+    /**
+     * Opens a link to a peer server and services it until it closes, then schedules another attempt unless the
+     * server is stopping or the address turned out to be this server.
+     * @param address the host:port of the peer.
+     */
+    private void dialPeer(String address) {
+        String host;
+        int port;
+        try {
+            host = address.substring(0, address.lastIndexOf(':'));
+            port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            showServerLogOutput("Ignoring invalid peer server address:  " + address);
+            return;
+        }
+        boolean retry = true;
+        if (m_continue.get()) {
+            try {
+                ClientThread link = new ClientThread(new Socket(host, port), address);
+                watch(link);
+                link.run();
+                retry = !link.m_refused;
+            } catch (IOException e) {
+                showServerLogOutput("Could not link to peer server " + address + ":  " + e.getMessage());
+            }
+        }
+        if (retry && m_continue.get()) {
+            try {
+                m_scheduler.schedule(() -> startThread(() -> dialPeer(address), "datchat-peer-" + address),
+                        m_config.getPeerRetrySeconds(), TimeUnit.SECONDS);
+            } catch (RejectedExecutionException ree) {
+                // The server is stopping.
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the traffic over each link to a peer server.
+     * @return the link statistics.
+     */
+    public List<LinkStats> getLinkStats() {
+        List<LinkStats> stats = new ArrayList<>();
+        for (PeerLink link : m_peers.getLinks()) {
+            stats.add(link.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the hostname cache.
+     * @return the hostname cache statistics.
+     */
+    public ResolverStats getResolverStats() {
+        return m_hostnames.getStats();
+    }
+
+    /**
+     * Returns the hostname of a client address without waiting on DNS.
+     * @param address the address.
+     * @return the hostname if it has been resolved, otherwise the address as text.
+     */
+    String getHostname(InetAddress address) {
+        return m_hostnames.lookup(address);
+    }
+
+    /**
+     * Tells everyone the new hostname of the users at an address, once it has been resolved.
+     * @param address the address.
+     */
+    private void hostnameResolved(InetAddress address) {
+        m_lock.lock();
+        try {
+            for (ClientConnection ct : m_clients.all()) {
+                if (address.equals(ct.getInetAddress())) {
+                    announcePresence(ct.getUserStatus(OnlineStatus.ONLINE));
+                }
+            }
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the resources held for each connected client.
+     * @return a snapshot of the resources held for each connected client.
+     */
+    public List<SessionStats> getSessionStats() {
+        List<SessionStats> stats = new ArrayList<>();
+        for (ClientConnection ct : m_clients.all()) {
+            stats.add(ct.getStats());
+        }
+        return stats;
+    }
+
+    /** Writes a summary of the server's resource use to the event log. */
+    private void reportStats() {
+        List<SessionStats> sessions = getSessionStats();
+        long total = 0;
+        long throttled = 0;
+        long dropped = 0;
+        SessionStats largest = null;
+        for (SessionStats ss : sessions) {
+            total += ss.retainedBytes;
+            throttled += ss.throttledMessages;
+            dropped += ss.droppedFrames;
+            if (largest == null || ss.retainedBytes > largest.retainedBytes) {
+                largest = ss;
+            }
+        }
+        StringBuilder report = new StringBuilder("Stats:  ");
+        report.append(sessions.size()).append(" sessions retaining ").append(total).append(" bytes");
+        if (largest != null) {
+            report.append(", largest ").append(largest.retainedBytes).append(" bytes (").append(largest.username).append(")");
+        }
+        report.append(", ").append(dropped).append(" queued frames dropped");
+        report.append(", ").append(m_rooms.size()).append(" rooms");
+        m_lock.lock();
+        try {
+            report.append(", ").append(m_history.size()).append(" history frames retaining ").append(m_history.getBytes()).append(" bytes");
+            report.append(", ").append(m_presence.getSuppressed()).append(" presence changes coalesced");
+            report.append(", ").append(throttled).append(" messages throttled");
+        } finally {
+            m_lock.unlock();
+        }
+        showServerLogOutput(report.toString());
+        for (LinkStats link : getLinkStats()) {
+            showServerLogOutput("Stats:  " + link);
+        }
+        showServerLogOutput("Stats:  " + getResolverStats());
+    }
+
     /** Closes the connection socket and all client sockets. */
     private void closeSockets() {
+        if (m_scheduler != null) {
+            m_scheduler.shutdownNow();
+        }
+        if (m_archiveReader != null) {
+            m_archiveReader.shutdownNow();
+        }
         try {
-            // Close the server socket.
-            m_serverSocket.close();
+            // Close the server socket (or the selector engine and its channels).
+            if (m_serverSocket != null) {
+                m_serverSocket.close();
+            }
+            if (m_nioEngine != null) {
+                m_nioEngine.shutdown();
+            }
 
-            // Close the client connections.
-            for (int i = 0; i < m_clientThreads.size(); ++i) {
-                ClientThread ct = m_clientThreads.get(i);
-                try {
-                    ct.sInput.close();
-                    ct.sOutput.close();
-                    ct.socket.close();
-                } catch (IOException ioe) {
-                    showServerLogOutput("Error closing socket for:  " + ct.username);
+            // Close the client connections and peer links, quietly dropping them so a restarted server starts empty.
+            for (ClientConnection ct : m_clients.all()) {
+                m_clients.remove(ct.id);
+                ct.close();
+            }
+            m_lock.lock();
+            try {
+                for (PeerLink link : m_peers.getLinks()) {
+                    m_peers.linkDown(link.connection.id);
+                    link.connection.close();
                 }
+                m_presence.clear();
+                m_heartbeats.clear();
+            } finally {
+                m_lock.unlock();
             }
 
         } catch (Exception e) {
@@ -138,24 +651,101 @@ public class Server {
      * Displays the supplied server log/output (either to the GUI or to the console).
      * @param msg the message to show.
      */
-    private void showServerLogOutput(String msg) {
+    void showServerLogOutput(String msg) {
         m_listeners.stream().forEach((sl) -> {
             sl.handleServerLogOutput(msg);
         });
     }
 
+    /**
+     * Reports the depth of a client's outbound queue to the listeners.
+     * @param client the client the queue belongs to.
+     * @param depth the number of messages waiting to be written.
+     * @param capacity the most messages the queue holds.
+     */
+    void showQueueDepth(ClientConnection client, int depth, int capacity) {
+        m_listeners.stream().forEach((sl) -> {
+            sl.handleClientQueueDepth(client.username, depth, capacity);
+        });
+    }
+
+    /**
+     * Returns the configuration of this server.
+     * @return the configuration of this server.
+     */
+    ServerConfig getConfig() {
+        return m_config;
+    }
+
     /**
      * Displays a chat room message (either to the GUI or the console).
      * @param msg the message to show.
      */
-    private void showRoomMessage(String msg) {
+    private void showRoomMessage(ChatLine msg) {
         m_listeners.stream().forEach((sl) -> {
             sl.handleServerMessageOutput(msg);
         });
     }
 
-    
-    private synchronized void broadcastChatMessage(ChatMessage msg) {
+    /**
+     * Broadcasts the supplied message to every client.
+     * @param msg the message to broadcast.
+     */
+    private void broadcastChatMessage(ChatMessage msg) {
+        m_lock.lock();
+        try {
+            broadcastLocal(msg);
+            m_peers.publish(msg);
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Broadcasts a server-wide message to this server's clients only, the caller must hold the server lock.
+     * @param msg the message to broadcast.
+     */
+    private void broadcastLocal(ChatMessage msg) {
+        // Taken before the message is logged, so paging back through the archive from here never repeats it.
+        long now = System.currentTimeMillis();
+        EncodedFrame frame = broadcastLocked(msg, m_clients.all());
+        if (msg.getType() == MessageType.CHAT_LINE) {
+            m_history.append(frame, now);
+        }
+    }
+
+    /**
+     * Broadcasts the supplied message to the members of a room only.
+     * @param room the room to broadcast to.
+     * @param msg the message to broadcast.
+     */
+    private void broadcastToRoom(String room, ChatMessage msg) {
+        broadcast(msg, m_rooms.members(room));
+    }
+
+    /**
+     * Broadcasts the supplied message to the supplied clients.
+     * @param msg the message to broadcast.
+     * @param recipients the clients to send the message to.
+     */
+    private void broadcast(ChatMessage msg, Collection<ClientConnection> recipients) {
+        m_lock.lock();
+        try {
+            broadcastLocked(msg, recipients);
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Broadcasts the supplied message to the supplied clients, the caller must hold the server lock.  The message is
+     * queued for delivery, it is handed to the clients once the caller releases the lock with
+     * {@link #unlockAndDeliver()}.
+     * @param msg the message to broadcast.
+     * @param recipients the clients to send the message to.
+     * @return the frame that was sent.
+     */
+    private EncodedFrame broadcastLocked(ChatMessage msg, Collection<ClientConnection> recipients) {
         // Do Server Side Message Processing
         MessageType type = msg.getType();
         switch (type) {
@@ -166,59 +756,657 @@ public class Server {
             case LOGOUT:
                 // Do nothing?
                 break;
-            case CHAT_MESSAGE:
-                String message = Datchat.CHAT_TIME_FORMATTER.format(System.currentTimeMillis()) + "  " + msg.getMessage();
-                showRoomMessage(message);
-                
-                // Update message for client processing with newly formatted chat message contents (date/time group etc.)
-                msg = new ChatMessage(MessageType.CHAT_MESSAGE, message);
+            case CHAT_LINE:
+                // Shown as it is, the line is laid out for display by whoever shows it.  Direct messages are private,
+                // so not shown in the server's room output.
+                showRoomMessage((ChatLine)msg.getMessage());
                 break;
         }
         
-        // Once Server Side Processing is complet, send the message to the Clients.
-        // --- For Each Client...
-        for (int i = m_clientThreads.size(); --i >= 0;) {
+        // Once Server Side Processing is complet, queue the message for the Clients.  Encode it once, every client
+        // queues the same immutable frame.  The recipients are copied, a client that joins after this broadcast must
+        // not be handed it.
+        EncodedFrame frame = EncodedFrame.encode(msg);
+        m_deliveries.add(new Delivery(frame, new ArrayList<>(recipients)));
+        return frame;
+    }
 
-            // Send message to client
-            ClientThread ct = m_clientThreads.get(i);
-            boolean sendFailed = !ct.writeMsg(msg);
+    /**
+     * Releases the server lock and, unless this thread still holds it further out, hands the queued broadcasts to
+     * their recipients.
+     */
+    private void unlockAndDeliver() {
+        m_lock.unlock();
+        if (m_lock.isHeldByCurrentThread()) {
+            return;
+        }
+        // Only one thread delivers at a time, in queue order.  A thread finding another already delivering leaves its
+        // broadcasts to it, and the deliverer checks the queue again after letting go in case one slipped in.
+        while (!m_deliveries.isEmpty() && m_deliveryLock.tryLock()) {
+            List<ClientConnection> failed = new ArrayList<>();
+            try {
+                Delivery delivery;
+                while ((delivery = m_deliveries.poll()) != null) {
+                    // --- For Each Client...
+                    for (ClientConnection ct : delivery.recipients) {
+                        // Send message to client
+                        if (!ct.writeFrame(delivery.frame)) {
+                            failed.add(ct);
+                        }
+                    }
+                }
+            } finally {
+                m_deliveryLock.unlock();
+            }
 
-            // If we failed to send a message to a given client, their connection is bad, remove them from the list of clients.
-            if (sendFailed) {
+            // If we failed to send a message to a given client, their connection is bad, remove them from the list of
+            // clients.  Done after delivering, so the removal's own announcements queue behind what is being sent.
+            for (ClientConnection ct : failed) {
                 remove(ct.id);
                 showServerLogOutput("Disconnected Client " + ct.username + " removed from list.");
             }
-        }        
+        }
     }
 
     
     /**
-     * Removes the client with the supplied ID from the list of ClientThreads.
-     * TODO - make client list a map?
+     * Removes the client with the supplied ID from the connected clients and tells everyone else it has gone.  Safe
+     * to call more than once for the same client, only the first call has any effect.
      * @param id the ID of the client to remove.
      */
-    synchronized void remove(int id) {
-        for (int i = 0; i < m_clientThreads.size(); ++i) {
-            ClientThread ct = m_clientThreads.get(i);
-            if (ct.id == id) {
+    void remove(int id) {
+        if (removePeerLink(id)) {
+            return;
+        }
+        ClientConnection ct = m_clients.remove(id);
+        if (ct == null) {
+            return;
+        }
 
-                // Disconnect from client.
-                ct.close();
+        // Disconnect from client.  Clients treat the server-wide OFFLINE status below as leaving every room too.
+        ct.close();
+        showServerLogOutput("Removed client:  " + ct.username);
+
+        // Leave the rooms and announce the departure in the next presence delta.  The rooms are left under the lock
+        // joinRoom checks the client is still connected under, so a join racing the removal cannot re-add it.
+        m_lock.lock();
+        try {
+            m_rooms.leaveAll(ct);
+            announcePresence(ct.getUserStatus(OnlineStatus.OFFLINE));
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Removes a peer link, telling this server's clients the users last heard of through it have gone, and asking
+     * the servers still reachable to announce their users again in case some were reachable another way.
+     * @param id the connection id.
+     * @return false if the connection is not a peer link.
+     */
+    private boolean removePeerLink(int id) {
+        m_lock.lock();
+        try {
+            List<UserStatus> lost = m_peers.linkDown(id);
+            if (lost == null) {
+                return false;
+            }
+            showServerLogOutput("Peer link closed, " + lost.size() + " remote users dropped.");
+            for (UserStatus status : lost) {
+                queuePresence(status);
+            }
+            m_peers.publish(new ChatMessage(MessageType.PEER_RESYNC, null));
+            return true;
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Handles the first message on a new connection, which logs in a chat client or brings up a peer link.
+     * @param conn the new connection.
+     * @param msg the first message received on it.
+     * @param peerAddress the address dialed if this server opened the connection to a peer, otherwise null.
+     * @return false if the connection was refused and should be closed.
+     * @throws IOException if the message is not a valid login or peer link.
+     */
+    boolean handleFirstMessage(ClientConnection conn, ChatMessage msg, String peerAddress) throws IOException {
+        conn.lastHeard = System.nanoTime();
+        if (msg.getType() == MessageType.PEER_LINK) {
+            return handlePeerLink(conn, (PeerHello) msg.getMessage(), peerAddress);
+        }
+        if (peerAddress != null) {
+            throw new IOException("Expected a PEER_LINK message from " + peerAddress + " but received " + msg.getType() + ".");
+        }
+        handleLogin(conn, readLogin(msg));
+        return true;
+    }
 
-                m_clientThreads.remove(i);
-                showServerLogOutput("Removed client:  " + ct.username);
-                
-                // Broadcast Disconnect chat room message
-                String broadcastMsg = prepareMsgForBroadcast(m_serverName, ct.username + " disconnected.");
-                broadcastChatMessage(new ChatMessage(MessageType.CHAT_MESSAGE, broadcastMsg));
-                
-                // Broadcast UserStatus Message object:
-                UserStatus userStat = ct.getUserStatus(OnlineStatus.OFFLINE);
-                ChatMessage status = new ChatMessage(MessageType.USER_STATUS, userStat);
-                broadcastChatMessage(status);
+    /**
+     * Brings up a link to a peer server once it has sent its node id, replying with this server's if the peer dialed
+     * in, then brings both sides' rosters up to date.
+     * A peer that dialed in is refused unless it is trusted, see {@link #isTrustedPeer}.
+     * @param conn the connection carrying the link.
+     * @param hello the peer's node id and secret.
+     * @param peerAddress the address dialed if this server opened the link, otherwise null.
+     * @return false if the link was refused.
+     */
+    private boolean handlePeerLink(ClientConnection conn, PeerHello hello, String peerAddress) {
+        String nodeId = hello.nodeId;
+        if (peerAddress == null && !isTrustedPeer(conn, hello.secret)) {
+            showServerLogOutput("Refused peer link from " + nodeId + " at " + conn.getInetAddress().getHostAddress()
+                    + ", it is not a configured peer and did not present the peer secret.");
+            return false;
+        }
+        m_lock.lock();
+        try {
+            PeerLink link = m_peers.linkUp(conn, nodeId, peerAddress);
+            if (link == null) {
+                showServerLogOutput("Refused peer link from " + nodeId + ", it is this server.");
+                return false;
+            }
+            conn.username = "peer " + nodeId;
+            showServerLogOutput("Linked to peer server " + nodeId + (peerAddress == null ? "." : " at " + peerAddress + "."));
+            if (peerAddress == null) {
+                conn.writeMsg(new ChatMessage(MessageType.PEER_LINK, new PeerHello(m_peers.getNodeId(), null)));
+            }
+            m_peers.publish(new ChatMessage(MessageType.PEER_RESYNC, null));
+            announceUsers();
+            return true;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers a message relayed by a peer server to this server's clients, unless it is a copy already delivered.
+     * @param link the link the message arrived on.
+     * @param relay the relayed message.
+     */
+    private void receiveRelay(PeerLink link, Relay relay) {
+        m_lock.lock();
+        try {
+            ChatMessage msg = m_peers.receive(link, relay);
+            if (msg == null) {
                 return;
             }
+            switch (msg.getType()) {
+                case CHAT_LINE:
+                    broadcastLocal(msg);
+                    break;
+                case USER_STATUS:
+                    UserStatus status = (UserStatus) msg.getMessage();
+                    if (status.room == null) {
+                        showServerLogOutput(status.toString());
+                        queuePresence(status);
+                    }
+                    break;
+                case PEER_RESYNC:
+                    announceUsers();
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /** Tells every peer server about this server's users, the caller must hold the server lock. */
+    private void announceUsers() {
+        for (ClientConnection ct : m_clients.all()) {
+            m_peers.publish(new ChatMessage(MessageType.USER_STATUS, ct.getUserStatus(OnlineStatus.ONLINE)));
+        }
+    }
+
+    /**
+     * Returns a new unique connection id.
+     * @return a new unique connection id.
+     */
+    static int nextConnectionId() {
+        return m_uniqueId.incrementAndGet();
+    }
+
+    /**
+     * Returns the username from a client's first message.
+     * @param msg the first message the client sent.
+     * @return the username the client wants to chat as.
+     * @throws IOException if the message is not a valid login.
+     */
+    static String readLogin(ChatMessage msg) throws IOException {
+        if (msg.getType() != MessageType.LOGIN || msg.getMessage() == null) {
+            throw new IOException("Expected a LOGIN message but received " + msg.getType() + ".");
+        }
+        return (String) msg.getMessage();
+    }
+
+    /**
+     * Completes the login of a client once it has sent its username, announcing it to the chat room.
+     * @param client the client logging in.
+     * @param username the username the client sent.
+     */
+    void handleLogin(ClientConnection client, String username) {
+        client.username = username;
+
+        showServerLogOutput(username + " has connected.");
+
+        // Hold the broadcast lock while the client is added and caught up, so that every message broadcast from here
+        // on is either in the replayed history or arrives after it, never both or neither.
+        boolean caughtUp;
+        m_lock.lock();
+        try {
+            // Add this client to the list of connected clients - DO THIS ONLY AFTER SUCCESSFULLY GETTING A USERNAME.
+            m_clients.add(client);
+
+            // Publish all of the online user statuses known to this newly connected user, here and on peer servers, in
+            // a single snapshot.
+            List<UserStatus> online = new ArrayList<>();
+            for (ClientConnection ct : m_clients.all()) {
+                online.add(ct.getUserStatus(OnlineStatus.ONLINE));
+            }
+            online.addAll(m_peers.getRemoteUsers());
+            client.writeMsg(new ChatMessage(MessageType.PRESENCE_SNAPSHOT, new Presence(online)));
+
+            // Then replay the recent chat history.
+            caughtUp = m_history.replayTo(client);
+            long oldest = m_history.oldestTime();
+            client.historyStart = oldest < 0 ? System.currentTimeMillis() : oldest;
+
+            // Announce this client to the others in the next presence delta.  If it is dropped below before the delta
+            // goes out, the two changes cancel and nobody hears of it at all.
+            announcePresence(client.getUserStatus(OnlineStatus.ONLINE));
+        } finally {
+            unlockAndDeliver();
+        }
+        if (!caughtUp) {
+            showServerLogOutput("Could not replay history to " + username + ", disconnecting.");
+            remove(client.id);
+        }
+    }
+
+    /**
+     * Announces a change in the status of one of this server's own users to its peer servers straight away, and to
+     * its clients in the next presence delta.  The caller must hold the server lock.
+     * @param status the user's new server-wide status.
+     */
+    private void announcePresence(UserStatus status) {
+        showServerLogOutput(status.toString());
+        m_peers.publish(new ChatMessage(MessageType.USER_STATUS, status));
+        queuePresence(status);
+    }
+
+    /**
+     * Adds a server-wide status change to the next presence delta, scheduling the delta if it is the first change
+     * since the last one.  The caller must hold the server lock.
+     * @param status the user's new server-wide status.
+     */
+    private void queuePresence(UserStatus status) {
+        if (!m_presence.add(status)) {
+            return;
+        }
+        int window = m_config.getPresenceWindowMillis();
+        if (window == 0) {
+            flushPresence();
+            return;
+        }
+        try {
+            m_scheduler.schedule(this::flushPresence, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The server is stopping, there is nobody left to tell.
+        }
+    }
+
+    /**
+     * Sends every client the net presence changes of the window just ended as one PRESENCE_DELTA, followed by a
+     * line in the chat saying who has come and gone.
+     */
+    private void flushPresence() {
+        m_lock.lock();
+        try {
+            PresenceAggregator.Delta delta = m_presence.drain();
+            if (delta.statuses.isEmpty()) {
+                return;
+            }
+            broadcastLocked(new ChatMessage(MessageType.PRESENCE_DELTA, new Presence(delta.statuses)), m_clients.all());
+            if (!delta.connected.isEmpty()) {
+                broadcastLocal(chatLine(null, m_serverName, presenceNotice(delta.connected, "connected.")));
+            }
+            if (!delta.disconnected.isEmpty()) {
+                broadcastLocal(chatLine(null, m_serverName, presenceNotice(delta.disconnected, "disconnected.")));
+            }
+        } finally {
+            unlockAndDeliver();
+        }
+    }
+
+    /**
+     * Returns a line naming the users who have come or gone, naming only the first few after a storm.
+     * @param users the usernames.
+     * @param change what they have done, "connected." or "disconnected.".
+     * @return the notice.
+     */
+    static String presenceNotice(List<String> users, String change) {
+        if (users.size() == 1) {
+            return users.get(0) + " has " + change;
+        }
+        int named = Math.min(users.size(), PRESENCE_NOTICE_NAMES);
+        StringBuilder notice = new StringBuilder(String.join(", ", users.subList(0, named - 1)));
+        if (named == users.size()) {
+            notice.append(" and ").append(users.get(named - 1));
+        } else {
+            notice.append(", ").append(users.get(named - 1)).append(" and ").append(users.size() - named).append(" others");
+        }
+        return notice.append(" have ").append(change).toString();
+    }
+
+    /**
+     * Applies a client's rate limit to a message it has sent, before the message is handled, so a flooding client is
+     * held back before it reaches the broadcast path.  Heartbeats, logouts and peer links are not limited.
+     * @param client the client that sent the message.
+     * @param msg the message received.
+     * @param bytes the size of the message on the wire.
+     * @return zero to handle the message now, the nanoseconds to wait before asking again under the DELAY policy, or
+     * -1 if the message has been dropped or the client disconnected.
+     */
+    long throttle(ClientConnection client, ChatMessage msg, int bytes) {
+        RateLimiter limiter = client.m_limiter;
+        MessageType type = msg.getType();
+        if (limiter == null || client.peer != null || type == MessageType.PING || type == MessageType.PONG
+                || type == MessageType.LOGOUT) {
+            return 0;
+        }
+        long wait = limiter.acquire(bytes);
+        if (wait == 0) {
+            client.m_dropNoticeSent = false;
+            return 0;
+        }
+        client.m_throttled.incrementAndGet();
+        switch (m_config.getRateLimitPolicy()) {
+            case DELAY:
+                return wait;
+            case DROP_WITH_NOTICE:
+                if (!client.m_dropNoticeSent) {
+                    client.m_dropNoticeSent = true;
+                    client.writeMsg(new ChatMessage(MessageType.ERROR, "You are sending messages too quickly, some were not delivered."));
+                }
+                return -1;
+            default:
+                showServerLogOutput(client.username + " exceeded the message rate limit, disconnecting.");
+                client.close();
+                remove(client.id);
+                return -1;
+        }
+    }
+
+    /**
+     * Handles a message received from a logged in client.
+     * @param client the client that sent the message.
+     * @param msg the message received.
+     * @return false if the client has logged out and its connection should be closed, true otherwise.
+     */
+    boolean handleMessage(ClientConnection client, ChatMessage msg) {
+        // Anything received shows the connection is alive, heartbeats are answered the same for clients and peers.
+        client.lastHeard = System.nanoTime();
+        if (msg.getType() == MessageType.PING) {
+            client.writeMsg(new ChatMessage(MessageType.PONG, null));
+            return true;
+        } else if (msg.getType() == MessageType.PONG) {
+            return true;
+        }
+
+        // Peer servers only relay.
+        PeerLink link = client.peer;
+        if (link != null) {
+            if (msg.getType() == MessageType.RELAY) {
+                receiveRelay(link, (Relay)msg.getMessage());
+            }
+            return true;
+        }
+
+        // Determine Message Type and Handle it.
+        switch (msg.getType()) {
+            case CHAT_MESSAGE:
+                // Get the payload (a String) and smash-cast it to a String for further use.
+                String message = (String)msg.getMessage();
+
+                // Stamp the line and send it, clients lay it out for display.
+                if (checkText(client, message)) {
+                    broadcastChatMessage(chatLine(null, client.username, message));
+                }
+                break;
+            case LOGOUT:
+                showServerLogOutput(client.username + " disconnected with a LOGOUT message.");
+                return false;
+            case JOIN_ROOM:
+                joinRoom(client, roomName(msg.getMessage()));
+                break;
+            case LEAVE_ROOM:
+                leaveRoom(client, roomName(msg.getMessage()));
+                break;
+            case ROOM_MESSAGE:
+                RoomMessage roomMsg = (RoomMessage)msg.getMessage();
+                String room = roomName(roomMsg.room);
+                if (!checkText(client, roomMsg.text)) {
+                    break;
+                }
+                if (room != null && m_rooms.isMember(room, client)) {
+                    broadcastToRoom(room, chatLine(room, client.username, roomMsg.text));
+                } else {
+                    sendNotice(client, "You are not in room #" + roomMsg.room + ", join it before posting to it.");
+                }
+                break;
+            case DIRECT_MESSAGE:
+                sendDirectMessage(client, (DirectMessage)msg.getMessage());
+                break;
+            case SEARCH:
+                searchArchive(client, (SearchRequest)msg.getMessage());
+                break;
+            case HISTORY_REQUEST:
+                readHistory(client, (HistoryRequest)msg.getMessage());
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Checks the text of a line of chat a client sent, telling the client if it was refused.  The line is sent on
+     * with its sender, room, time and id added, so the text is held well below the largest frame for that to fit.
+     * @param client the client that sent the line.
+     * @param text the text of the line.
+     * @return true if the line may be sent on.
+     */
+    private boolean checkText(ClientConnection client, String text) {
+        if (text == null || text.length() > Datchat.MAX_MESSAGE_CHARS) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR,
+                    "Your message was not sent, messages are limited to " + Datchat.MAX_MESSAGE_CHARS + " characters."));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the room name in the supplied payload, without any leading '#'.
+     * @param payload the room name sent by a client.
+     * @return the room name, or null if it is not a valid room name.
+     */
+    private static String roomName(Object payload) {
+        if (!(payload instanceof String)) {
+            return null;
+        }
+        String room = ((String)payload).trim();
+        if (room.startsWith("#")) {
+            room = room.substring(1);
+        }
+        if (room.isEmpty() || room.length() > Datchat.MAX_ROOM_CHARS || room.matches(".*\\s.*")) {
+            return null;
+        }
+        return room;
+    }
+
+    /**
+     * Subscribes a client to a room, telling the room's members it has arrived and telling it who is already there.
+     * @param client the client joining.
+     * @param room the room to join, null if the client sent an invalid name.
+     */
+    private void joinRoom(ClientConnection client, String room) {
+        if (room == null) {
+            sendNotice(client, "Room names are 1 to " + Datchat.MAX_ROOM_CHARS + " characters with no spaces.");
+            return;
+        }
+        boolean joined;
+        m_lock.lock();
+        try {
+            // A join read before the client was removed may be handled after, leave a departed client out of the room.
+            joined = m_clients.contains(client) && !client.isClosed() && m_rooms.join(room, client);
+        } finally {
+            m_lock.unlock();
+        }
+        if (!joined) {
+            return;
+        }
+        showServerLogOutput(client.username + " joined #" + room + ".");
+
+        // Announce the newcomer to the room (the newcomer included), then tell it who else is there.
+        broadcastToRoom(room, new ChatMessage(MessageType.USER_STATUS, client.getUserStatus(OnlineStatus.ONLINE, room)));
+        for (ClientConnection member : m_rooms.members(room)) {
+            if (member != client) {
+                client.writeMsg(new ChatMessage(MessageType.USER_STATUS, member.getUserStatus(OnlineStatus.ONLINE, room)));
+            }
+        }
+        broadcastToRoom(room, chatLine(room, m_serverName, client.username + " has joined."));
+    }
+
+    /**
+     * Unsubscribes a client from a room, telling the remaining members and the client itself.
+     * @param client the client leaving.
+     * @param room the room to leave, null if the client sent an invalid name.
+     */
+    private void leaveRoom(ClientConnection client, String room) {
+        if (room == null || !m_rooms.leave(room, client)) {
+            return;
         }
+        showServerLogOutput(client.username + " left #" + room + ".");
+
+        ChatMessage status = new ChatMessage(MessageType.USER_STATUS, client.getUserStatus(OnlineStatus.OFFLINE, room));
+        client.writeMsg(status);
+        broadcastToRoom(room, status);
+        broadcastToRoom(room, chatLine(room, m_serverName, client.username + " has left."));
+    }
+
+    /**
+     * Delivers a private message to every session of its recipient, and echoes it to the sender's sessions, looking
+     * the recipient up by username rather than walking every client.  The sender gets an ERROR if the message has no
+     * recipient or text, or the recipient is not logged in.
+     * @param client the client that sent the message.
+     * @param direct the message, addressed by recipient username.
+     */
+    private void sendDirectMessage(ClientConnection client, DirectMessage direct) {
+        if (direct.to == null || direct.to.trim().isEmpty()) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "Your message was not sent, it has no recipient."));
+            return;
+        }
+        if (direct.text == null || direct.text.trim().isEmpty()) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "Your message to " + direct.to + " was not sent, it is empty."));
+            return;
+        }
+        if (!checkText(client, direct.text)) {
+            return;
+        }
+        Collection<ClientConnection> recipients = m_clients.getByUsername(direct.to);
+        if (recipients.isEmpty()) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "Could not deliver your message, " + direct.to + " is not online."));
+            return;
+        }
+        List<ClientConnection> sessions = new ArrayList<>(recipients);
+        if (!direct.to.equals(client.username)) {
+            sessions.addAll(m_clients.getByUsername(client.username));
+        }
+        DirectMessage post = new DirectMessage(client.username, direct.to, direct.text, System.currentTimeMillis());
+        broadcast(new ChatMessage(MessageType.DIRECT_MESSAGE, post), sessions);
+    }
+
+    /**
+     * Answers a client's search of the chat archive.  The search reads from disk, so it runs on the archive
+     * threads rather than holding up the thread servicing the client.
+     * @param client the client that asked.
+     * @param request the search.
+     */
+    private void searchArchive(ClientConnection client, SearchRequest request) {
+        ChatArchive archive = m_archive;
+        if (archive == null) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "Search is not available, this server is not keeping a chat log."));
+            return;
+        }
+        readArchive(client, () -> {
+            try {
+                SearchResults results = archive.search(request.query, Math.max(0, request.page), SEARCH_PAGE_SIZE);
+                client.writeMsg(new ChatMessage(MessageType.SEARCH_RESULTS, results));
+            } catch (IOException | RuntimeException e) {
+                showServerLogOutput("Error searching the chat archive for " + client.username + ":  " + e);
+                client.writeMsg(new ChatMessage(MessageType.ERROR, "Search failed:  " + e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Reads a page of archived chat history for a client, off the message handling thread, and sends it back.
+     * @param client the client scrolling back.
+     * @param request the point to page back from and the number of lines wanted.
+     */
+    private void readHistory(ClientConnection client, HistoryRequest request) {
+        ChatArchive archive = m_archive;
+        if (archive == null) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "History is not available, this server is not keeping a chat log."));
+            return;
+        }
+        // The first page starts where the history replayed at login does, later pages where the page before ended.
+        long before = request.before > 0 ? request.before : Long.MAX_VALUE;
+        int limit = Math.max(1, Math.min(request.limit, HISTORY_PAGE_LIMIT));
+        readArchive(client, () -> {
+            try {
+                HistoryPage page = archive.history(before, client.historyStart, limit);
+                client.writeMsg(new ChatMessage(MessageType.HISTORY_PAGE, page));
+            } catch (IOException | RuntimeException e) {
+                showServerLogOutput("Error reading the chat archive for " + client.username + ":  " + e);
+                client.writeMsg(new ChatMessage(MessageType.ERROR, "Could not load earlier messages:  " + e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Hands a read of the chat archive to the archive threads, telling the client to try again if too many reads are
+     * already waiting.
+     * @param client the client the read is for.
+     * @param read the read, which answers the client itself.
+     */
+    private void readArchive(ClientConnection client, Runnable read) {
+        try {
+            m_archiveReader.execute(read);
+        } catch (RejectedExecutionException ree) {
+            client.writeMsg(new ChatMessage(MessageType.ERROR, "The chat archive is busy, please try again shortly."));
+        }
+    }
+
+    /**
+     * Sends a chat line from the server to a single client.
+     * @param client the client to send the line to.
+     * @param text the text of the line.
+     */
+    private void sendNotice(ClientConnection client, String text) {
+        client.writeMsg(chatLine(null, m_serverName, text));
+    }
+
+    /**
+     * Stamps a line of chat with the current time and the next line id.  The line is sent as it is, laying it out for
+     * display is left to whoever shows it, so nothing is formatted while the broadcast lock is held.
+     * @param room the room the line is posted to, or null for the whole server.
+     * @param sender the username of whoever said it.
+     * @param text the text of the line.
+     * @return a CHAT_LINE message.
+     */
+    private ChatMessage chatLine(String room, String sender, String text) {
+        ChatLine line = new ChatLine(room, sender, System.currentTimeMillis(), text, m_lineIds.incrementAndGet());
+        return new ChatMessage(MessageType.CHAT_LINE, line);
     }
 
     /**
@@ -238,113 +1426,126 @@ public class Server {
         sd.launchDisplay();
     }
     
-    private String prepareMsgForBroadcast(String username, String message) {
-        // Create the message to broadcast, doing some pretty printing 
-        StringBuilder broadcastMsg = new StringBuilder(username);
-        broadcastMsg.append(":");
-        if (username.length() < Datchat.MAX_USERNAME_CHARS) {
-            int spaces = Datchat.MAX_USERNAME_CHARS - username.length();
-            for (int i = 0; i < spaces; i++) {
-                broadcastMsg.append(" ");
-            }
-        }
-        broadcastMsg.append("  ");
-        broadcastMsg.append(message);    
-        
-        return broadcastMsg.toString();
+    /** A broadcast frame waiting to be handed to its recipients. */
+    private static class Delivery {
+
+        /** The encoded message. */
+        final EncodedFrame frame;
+
+        /** The clients to hand it to. */
+        final List<ClientConnection> recipients;
+
+        /**
+         * Constructor.
+         * @param frame the encoded message.
+         * @param recipients the clients to hand it to.
+         */
+        Delivery(EncodedFrame frame, List<ClientConnection> recipients) {
+            this.frame = frame;
+            this.recipients = recipients;
+        }
     }
 
-    /** Helper class that represents each connected chat user. */
-    class ClientThread extends Thread {
+    /** Helper class that represents each connected chat user, serviced by its own blocking reader and writer threads. */
+    class ClientThread extends ClientConnection implements Runnable {
 
         /** Socket for listening for messages from the chat user and publishing messages to them. */
         Socket socket;
         /** In stream for incoming messages. */
-        ObjectInputStream sInput;
+        DataInputStream sInput;
         /** Out stream for outgoing messages. */
-        ObjectOutputStream sOutput;
-        /** A user id. */
-        int id;
-        /** A username for the user. */
-        String username;
+        DataOutputStream sOutput;
         /** A ChatMessage object used to read the ChatMessage objects from the socket. */
         ChatMessage m_msg;
-        /** The time the user connected to the server. */
-        long connectionTime;
+
+        /** The address this server dialed to open a link to a peer server, null for accepted connections. */
+        final String m_peerAddress;
+        /** Set if the link to a peer server was refused, so it is not dialed again. */
+        volatile boolean m_refused;
 
         /**
          * Constructor.
          * @param socket the socket the client connected on.
          */
         ClientThread(Socket socket) {
-            id = ++m_uniqueId;
+            this(socket, null);
+        }
+
+        /**
+         * Constructor.
+         * @param socket the socket of the connection.
+         * @param peerAddress the address dialed to open a link to a peer server, null if the connection was accepted.
+         */
+        ClientThread(Socket socket, String peerAddress) {
+            super(Server.this, nextConnectionId());
             this.socket = socket;
-            connectionTime = System.currentTimeMillis();
+            m_peerAddress = peerAddress;
         }
-        
-        UserStatus getUserStatus(OnlineStatus oStat) {
-            return new UserStatus(username, socket.getInetAddress().getHostName(), connectionTime, oStat);
+
+        @Override
+        InetAddress getInetAddress() {
+            return socket.getInetAddress();
         }
 
         @Override
         public void run() {
             boolean keepGoing = true;
+            ChatMessage first;
             try {
                 // Create out and input streams.
-                sOutput = new ObjectOutputStream(socket.getOutputStream());
-                sInput = new ObjectInputStream(socket.getInputStream());
-                
-                // Wait for the client to send you a username.  If this does not occur, we have an invalid client.
-                username = (String)sInput.readObject();
-                
-                // Alert ot her clients that this client has successfully connected.
-                String join = username + " has connected.";
-                showServerLogOutput(join);
-                String broadcastMsg = prepareMsgForBroadcast(m_serverName, join);
-                broadcastChatMessage(new ChatMessage(MessageType.CHAT_MESSAGE, broadcastMsg));
-
-            } catch (IOException | ClassNotFoundException e) {
+                sOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                        m_config.getWriteBatchBytes()));
+                sInput = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_BYTES));
+
+                // A link we dialed opens by naming this server to the peer.
+                if (m_peerAddress != null) {
+                    WireCodec.writeFrame(sOutput, new ChatMessage(MessageType.PEER_LINK,
+                            new PeerHello(m_peers.getNodeId(), m_config.getPeerSecret())));
+                }
+
+                // Wait for the client to send you a username (or a peer its node id).  If this does not occur, we have an invalid client.
+                first = WireCodec.readFrame(sInput);
+            } catch (IOException e) {
                 showServerLogOutput("Exception creating new Input/output Streams: " + e);
+                close();
+                return;
+            }
+            startThread(this::writeLoop, "datchat-writer-" + id);
+            try {
+                if (!handleFirstMessage(this, first, m_peerAddress)) {
+                    m_refused = true;
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                showServerLogOutput("Invalid first message on new connection: " + e.getMessage());
+                close();
                 return;
             }
-            
-            // Add this client to the list of connected clients - DO THIS ONLY AFTER SUCCESSFULLY GETTING A USERNAME.
-            m_clientThreads.add(this);            
-            
-            // Publish all of the online user statuses known to this newly connected user.
-            m_clientThreads.stream().forEach((ct) -> {
-                writeMsg(new ChatMessage(MessageType.USER_STATUS, ct.getUserStatus(OnlineStatus.ONLINE)));
-            });
-            
-            // Publish This Client's Own User Status to the othert users.
-            UserStatus userStat = getUserStatus(OnlineStatus.ONLINE);
-            ChatMessage status = new ChatMessage(MessageType.USER_STATUS, userStat);
-            broadcastChatMessage(status);
 
             while (keepGoing) {
                 try {
+                    // Read the frame here rather than with WireCodec.readFrame, the rate limit needs its size.
+                    int length;
                     try {
-                        m_msg = (ChatMessage) sInput.readObject();
+                        length = sInput.readInt();
+                        WireCodec.checkLength(length);
+                        byte[] payload = new byte[length];
+                        sInput.readFully(payload);
+                        m_msg = WireCodec.decodePayload(payload, 0, length);
                     } catch (IOException e) {
                         showServerLogOutput(username + " Exception reading Streams: " + e);
                         break;
                     }
-                    
-                    // Determine Message Type and Handle it.
-                    switch (m_msg.getType()) {
-                        case CHAT_MESSAGE:
-                            // Get the payload (a String) and smash-cast it to a String for further use.
-                            String message = (String)m_msg.getMessage();
-                            
-                            // Prepare/Format the msg and send it.
-                            String broadcastMsg = prepareMsgForBroadcast(username, message);
-                            broadcastChatMessage(new ChatMessage(MessageType.CHAT_MESSAGE, broadcastMsg));
-                            break;
-                        case LOGOUT:
-                            showServerLogOutput(username + " disconnected with a LOGOUT message.");
-                            keepGoing = false;
-                            break;
+
+                    // Under the DELAY policy, hold the message and stop reading until the rate limit allows it.
+                    long wait;
+                    while ((wait = throttle(this, m_msg, WireCodec.HEADER_BYTES + length)) > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
                     }
+                    keepGoing = wait == 0 ? handleMessage(this, m_msg) : !isClosed();
+                } catch (InterruptedException ie) {
+                    break;
                 } catch (Exception e) {
                     // General catch-all Not a long-term resident in this class, but in early development...
                     showServerLogOutput("Error occured processing thread for client:  " + this.username);
@@ -354,23 +1555,63 @@ public class Server {
             close();
         }
 
-        @SuppressWarnings("empty-statement")
-        private void close() {
-            // try to close the connection
+        /**
+         * Drains the outbound queue to the socket until the connection is closed.  Frames are coalesced into the
+         * stream buffer and flushed together, up to the configured batch size, waiting at most the configured delay
+         * for a batch to fill.
+         */
+        private void writeLoop() {
+            int batchFrames = m_config.getWriteBatchFrames();
+            int batchBytes = m_config.getWriteBatchBytes();
+            long delayNanos = TimeUnit.MICROSECONDS.toNanos(m_config.getWriteDelayMicros());
             try {
-                if (sOutput != null) {
-                    sOutput.close();
+                EncodedFrame frame;
+                while ((frame = m_outbound.take()) != null) {
+                    long deadline = System.nanoTime() + delayNanos;
+                    int frames = 0;
+                    int bytes = 0;
+                    do {
+                        frame.writeTo(sOutput);
+                        frames++;
+                        bytes += frame.length();
+                        if (frames >= batchFrames || bytes >= batchBytes) {
+                            break;
+                        }
+                        frame = m_outbound.poll(deadline - System.nanoTime());
+                    } while (frame != null);
+                    reportQueueDepth();
+                    sOutput.flush();
                 }
             } catch (IOException e) {
-                showServerLogOutput("IO Exception closing client output stream:  " + this.username + ".");
-            }
-            try {
-                if (sInput != null) {
-                    sInput.close();
+                if (!m_outbound.isClosed()) {
+                    showServerLogOutput("Error sending message to " + username);
+                    showServerLogOutput(e.toString());
+                    close();
+                    remove(id);
                 }
-            } catch (IOException e) {
-                showServerLogOutput("IO Exception closing client input stream:  " + this.username + ".");
+            } catch (InterruptedException ie) {
+                close();
             }
+        }
+
+        @Override
+        void messageQueued() {
+            // The writer thread is already waiting on the queue.
+        }
+
+        @Override
+        long getBufferedBytes() {
+            return STREAM_BUFFER_BYTES + m_config.getWriteBatchBytes();
+        }
+
+        @Override
+        void trimBuffers() {
+            // The stream buffers are fixed in size and frames are read into short-lived arrays, nothing to trim.
+        }
+
+        @Override
+        void closeSocket() {
+            // Closing the socket closes both streams, and does so without flushing so a stalled client can't block us.
             try {
                 if (socket != null) {
                     socket.close();
@@ -379,26 +1620,5 @@ public class Server {
                 showServerLogOutput("IO Exception closing client socket:  " + this.username + ".");
             }
         }
-
-        /**
-         * Writes the supplied ChatMessage object to the output stream.
-         * @param msg the ChatMessage object to write.
-         * @return true if the writing was successful, false otherwise.
-         */
-        private boolean writeMsg(ChatMessage msg) {
-            // if client is still connected send the message to it
-            if (!socket.isConnected()) {
-                close();
-                return false;
-            }
-            try {
-                sOutput.writeObject(msg);
-                return true;
-            } catch (IOException e) {
-                showServerLogOutput("Error sending message to " + username);
-                showServerLogOutput(e.toString());
-                return false;
-            }
-        }
     }
 }
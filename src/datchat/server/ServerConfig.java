@@ -0,0 +1,776 @@
+package datchat.server;
+
+import datchat.Datchat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tunable settings for the chat Server.  Defaults are suitable for a small team server, and any of them can be
+ * overridden with a -Ddatchat.server.* system property when launching.
+ * @author adam
+ */
+public class ServerConfig {
+
+    /** The prefix of every system property read by {@link #fromSystemProperties()}. */
+    public static final String PROPERTY_PREFIX = "datchat.server.";
+
+    /** How client connections are serviced. */
+    private ServerMode m_mode = ServerMode.THREAD_PER_CLIENT;
+
+    /** The number of selector threads used in NIO mode. */
+    private int m_ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** The most messages that may wait to be written to a single client. */
+    private int m_queueCapacity = 1024;
+
+    /** What a client's outbound queue does when it is full. */
+    private OverflowPolicy m_overflowPolicy = OverflowPolicy.DISCONNECT;
+
+    /** How long a broadcast waits for room in a full queue under the BLOCK policy. */
+    private long m_overflowBlockMillis = 2000;
+
+    /** The most frames gathered into a single write to a client. */
+    private int m_writeBatchFrames = 64;
+
+    /** The most bytes gathered into a single write to a client. */
+    private int m_writeBatchBytes = 64 * 1024;
+
+    /** How long a writer waits for more frames before flushing a batch that is not full, in microseconds. */
+    private int m_writeDelayMicros = 0;
+
+    /** The number of messages a session moves before its buffers are reset, zero to never reset by count. */
+    private int m_sessionResetMessages = 1000;
+
+    /** The number of bytes a session moves before its buffers are reset, zero to never reset by size. */
+    private int m_sessionResetBytes = 1 << 20;
+
+    /** The most chat messages retained for replay to newly connected clients, zero to retain none. */
+    private int m_historyMessages = 100;
+
+    /** The most bytes of chat messages retained for replay to newly connected clients. */
+    private int m_historyBytes = 64 * 1024;
+
+    /** The size a server log journal segment is rolled over at. */
+    private int m_journalSegmentBytes = 16 * 1024 * 1024;
+
+    /** When the server log journals force what they have written to disk. */
+    private FsyncPolicy m_journalFsync = FsyncPolicy.INTERVAL;
+
+    /** The shortest time between forces of a server log journal under the INTERVAL policy. */
+    private int m_journalFsyncMillis = 1000;
+
+    /** The most server log records waiting to be written before new ones are dropped. */
+    private int m_logQueueCapacity = 8192;
+
+    /** Seconds between saves of the chat search index, zero to save it only when the server log is closed. */
+    private int m_indexSnapshotSeconds = 60;
+
+    /** Seconds between server statistics reports in the event log, zero to disable them. */
+    private int m_statsIntervalSeconds = 300;
+
+    /** The name this server goes by on peer links, null to use its host name and port. */
+    private String m_nodeId;
+
+    /** The host:port addresses of the peer servers to link to. */
+    private List<String> m_peers = Collections.emptyList();
+
+    /** The secret a peer server must present to link to this one from an unconfigured address, null for none. */
+    private String m_peerSecret;
+
+    /** The most messages that may wait to be written to a peer server. */
+    private int m_linkQueueCapacity = 16384;
+
+    /** Seconds between attempts to re-establish a lost or refused peer link. */
+    private int m_peerRetrySeconds = 5;
+
+    /** How long user status changes are gathered before clients are sent the net change, in milliseconds. */
+    private int m_presenceWindowMillis = 250;
+
+    /** How long a connection may be silent before it is sent a PING, in seconds, zero to send no heartbeats. */
+    private int m_heartbeatIntervalSeconds = 30;
+
+    /** How long a connection may be silent before it is assumed dead and dropped, in seconds. */
+    private int m_heartbeatTimeoutSeconds = 90;
+
+    /** The sustained rate of messages a client may send, zero for no limit. */
+    private int m_rateMessagesPerSecond = 10;
+
+    /** The sustained rate of bytes a client may send, zero for no limit. */
+    private int m_rateBytesPerSecond = 16 * 1024;
+
+    /** How many seconds' worth of messages and bytes a client may send in a burst. */
+    private int m_rateBurstSeconds = 3;
+
+    /** What is done with a message sent faster than the rate limits allow. */
+    private RateLimitPolicy m_rateLimitPolicy = RateLimitPolicy.DELAY;
+
+    /** How long a client's resolved hostname is cached, in seconds, zero to show addresses rather than hostnames. */
+    private int m_hostnameTtlSeconds = 600;
+
+    /** The most lines kept in each of the server display's text areas. */
+    private int m_scrollbackLines = Datchat.DEFAULT_SCROLLBACK_LINES;
+
+    /** The most characters kept in each of the server display's text areas. */
+    private int m_scrollbackChars = Datchat.DEFAULT_SCROLLBACK_CHARS;
+
+    /**
+     * Returns the connection servicing mode.
+     * @return the connection servicing mode.
+     */
+    public ServerMode getMode() {
+        return m_mode;
+    }
+
+    /**
+     * Sets the connection servicing mode.
+     * @param mode the mode to use, ignored if null.
+     */
+    public void setMode(ServerMode mode) {
+        if (mode != null) {
+            m_mode = mode;
+        }
+    }
+
+    /**
+     * Returns the number of selector threads used in NIO mode.
+     * @return the number of selector threads used in NIO mode.
+     */
+    public int getIoThreads() {
+        return m_ioThreads;
+    }
+
+    /**
+     * Sets the number of selector threads used in NIO mode.
+     * @param ioThreads the thread count, values below one are treated as one.
+     */
+    public void setIoThreads(int ioThreads) {
+        m_ioThreads = Math.max(1, ioThreads);
+    }
+
+    /**
+     * Returns the most messages that may wait to be written to a single client.
+     * @return the outbound queue capacity.
+     */
+    public int getQueueCapacity() {
+        return m_queueCapacity;
+    }
+
+    /**
+     * Sets the most messages that may wait to be written to a single client.
+     * @param queueCapacity the outbound queue capacity, values below one are treated as one.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        m_queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Returns what a client's outbound queue does when it is full.
+     * @return the overflow policy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return m_overflowPolicy;
+    }
+
+    /**
+     * Sets what a client's outbound queue does when it is full.  In NIO mode a BLOCK wait would stall the selector
+     * thread the queue drains on, so there BLOCK is treated as DISCONNECT.
+     * @param overflowPolicy the overflow policy, ignored if null.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy != null) {
+            m_overflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * Returns how long a broadcast waits for room in a full queue under the BLOCK policy.
+     * @return the wait in milliseconds.
+     */
+    public long getOverflowBlockMillis() {
+        return m_overflowBlockMillis;
+    }
+
+    /**
+     * Sets how long a broadcast waits for room in a full queue under the BLOCK policy.
+     * @param overflowBlockMillis the wait in milliseconds.
+     */
+    public void setOverflowBlockMillis(long overflowBlockMillis) {
+        m_overflowBlockMillis = Math.max(0, overflowBlockMillis);
+    }
+
+    /**
+     * Returns the most frames gathered into a single write to a client.
+     * @return the most frames per write.
+     */
+    public int getWriteBatchFrames() {
+        return m_writeBatchFrames;
+    }
+
+    /**
+     * Sets the most frames gathered into a single write to a client.
+     * @param writeBatchFrames the most frames per write, values below one are treated as one.
+     */
+    public void setWriteBatchFrames(int writeBatchFrames) {
+        m_writeBatchFrames = Math.max(1, writeBatchFrames);
+    }
+
+    /**
+     * Returns the most bytes gathered into a single write to a client.
+     * @return the most bytes per write.
+     */
+    public int getWriteBatchBytes() {
+        return m_writeBatchBytes;
+    }
+
+    /**
+     * Sets the most bytes gathered into a single write to a client.  A single frame larger than this is still
+     * written whole.
+     * @param writeBatchBytes the most bytes per write, values below 1024 are treated as 1024.
+     */
+    public void setWriteBatchBytes(int writeBatchBytes) {
+        m_writeBatchBytes = Math.max(1024, writeBatchBytes);
+    }
+
+    /**
+     * Returns how long a writer waits for more frames before flushing a batch that is not full.
+     * @return the wait in microseconds.
+     */
+    public int getWriteDelayMicros() {
+        return m_writeDelayMicros;
+    }
+
+    /**
+     * Sets how long a writer waits for more frames before flushing a batch that is not full.  Zero (the default)
+     * only coalesces frames that are already queued, and never delays a message.  The NIO engine's timers have
+     * millisecond resolution, so there any non-zero delay is rounded up to at least a millisecond.
+     * @param writeDelayMicros the wait in microseconds.
+     */
+    public void setWriteDelayMicros(int writeDelayMicros) {
+        m_writeDelayMicros = Math.max(0, writeDelayMicros);
+    }
+
+    /**
+     * Returns the number of messages a session moves before its buffers are reset.
+     * @return the message count, zero if sessions are never reset by count.
+     */
+    public int getSessionResetMessages() {
+        return m_sessionResetMessages;
+    }
+
+    /**
+     * Sets the number of messages a session moves (in either direction) before its buffers are trimmed back to
+     * their initial size.
+     * @param sessionResetMessages the message count, zero to never reset by count.
+     */
+    public void setSessionResetMessages(int sessionResetMessages) {
+        m_sessionResetMessages = Math.max(0, sessionResetMessages);
+    }
+
+    /**
+     * Returns the number of bytes a session moves before its buffers are reset.
+     * @return the byte count, zero if sessions are never reset by size.
+     */
+    public int getSessionResetBytes() {
+        return m_sessionResetBytes;
+    }
+
+    /**
+     * Sets the number of bytes a session moves (in either direction) before its buffers are trimmed back to their
+     * initial size.
+     * @param sessionResetBytes the byte count, zero to never reset by size.
+     */
+    public void setSessionResetBytes(int sessionResetBytes) {
+        m_sessionResetBytes = Math.max(0, sessionResetBytes);
+    }
+
+    /**
+     * Returns the seconds between server statistics reports.
+     * @return the seconds between reports, zero if disabled.
+     */
+    public int getStatsIntervalSeconds() {
+        return m_statsIntervalSeconds;
+    }
+
+    /**
+     * Sets the seconds between server statistics reports in the event log.
+     * @param statsIntervalSeconds the seconds between reports, zero to disable them.
+     */
+    public void setStatsIntervalSeconds(int statsIntervalSeconds) {
+        m_statsIntervalSeconds = Math.max(0, statsIntervalSeconds);
+    }
+
+    /**
+     * Returns the name this server goes by on peer links.
+     * @return the node id, null to use the host name and port.
+     */
+    public String getNodeId() {
+        return m_nodeId;
+    }
+
+    /**
+     * Sets the name this server goes by on peer links, which must be unique within the chat network.
+     * @param nodeId the node id, null or blank to use the host name and port.
+     */
+    public void setNodeId(String nodeId) {
+        m_nodeId = nodeId == null || nodeId.trim().isEmpty() ? null : nodeId.trim();
+    }
+
+    /**
+     * Returns the addresses of the peer servers to link to.
+     * @return the host:port addresses, never null.
+     */
+    public List<String> getPeers() {
+        return m_peers;
+    }
+
+    /**
+     * Sets the addresses of the peer servers this server links to when it starts.  A network only needs each pair of
+     * servers joined by some path of links.  A server only accepts a link dialed from the host of one of its own
+     * peers, or from a server presenting the peer secret, so the server accepting a link must either list the one
+     * dialing it too or share a secret with it.
+     * @param peers the host:port addresses, null for none.
+     */
+    public void setPeers(List<String> peers) {
+        m_peers = peers == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(peers));
+    }
+
+    /**
+     * Returns the secret shared by the servers of the chat network.
+     * @return the peer secret, null if there is none.
+     */
+    public String getPeerSecret() {
+        return m_peerSecret;
+    }
+
+    /**
+     * Sets the secret shared by the servers of the chat network.  This server presents it on every link it dials, and
+     * accepts links presenting it from any address.  Without one, links are only accepted from the hosts of the
+     * configured peers.
+     * @param peerSecret the peer secret, null or empty for none.
+     */
+    public void setPeerSecret(String peerSecret) {
+        m_peerSecret = peerSecret == null || peerSecret.isEmpty() ? null : peerSecret;
+    }
+
+    /**
+     * Returns the most messages that may wait to be written to a peer server.
+     * @return the peer link queue capacity.
+     */
+    public int getLinkQueueCapacity() {
+        return m_linkQueueCapacity;
+    }
+
+    /**
+     * Sets the most messages that may wait to be written to a peer server.  A link carries the traffic of the whole
+     * network rather than one user, so it gets a deeper queue than a client; the overflow policy is the same.
+     * @param linkQueueCapacity the capacity, values below one are treated as one.
+     */
+    public void setLinkQueueCapacity(int linkQueueCapacity) {
+        m_linkQueueCapacity = Math.max(1, linkQueueCapacity);
+    }
+
+    /**
+     * Returns the seconds between attempts to re-establish a lost or refused peer link.
+     * @return the retry interval in seconds.
+     */
+    public int getPeerRetrySeconds() {
+        return m_peerRetrySeconds;
+    }
+
+    /**
+     * Sets the seconds between attempts to re-establish a lost or refused peer link.
+     * @param peerRetrySeconds the retry interval, values below one are treated as one.
+     */
+    public void setPeerRetrySeconds(int peerRetrySeconds) {
+        m_peerRetrySeconds = Math.max(1, peerRetrySeconds);
+    }
+
+    /**
+     * Returns how long user status changes are gathered before clients are sent the net change.
+     * @return the presence window in milliseconds.
+     */
+    public int getPresenceWindowMillis() {
+        return m_presenceWindowMillis;
+    }
+
+    /**
+     * Sets how long user status changes are gathered before clients are sent the net change.  This also caps how
+     * often a client is sent presence updates, at most one per window however many users come and go.
+     * @param presenceWindowMillis the window in milliseconds, zero to send every change as it happens.
+     */
+    public void setPresenceWindowMillis(int presenceWindowMillis) {
+        m_presenceWindowMillis = Math.max(0, presenceWindowMillis);
+    }
+
+    /**
+     * Returns how long a connection may be silent before it is sent a PING.
+     * @return the heartbeat interval in seconds, zero if no heartbeats are sent.
+     */
+    public int getHeartbeatIntervalSeconds() {
+        return m_heartbeatIntervalSeconds;
+    }
+
+    /**
+     * Sets how long a connection may be silent before it is sent a PING.  A PING is sent every interval for as long
+     * as the silence lasts.
+     * @param heartbeatIntervalSeconds the interval in seconds, zero to send no heartbeats and never drop a silent
+     * connection.
+     */
+    public void setHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
+        m_heartbeatIntervalSeconds = Math.max(0, heartbeatIntervalSeconds);
+    }
+
+    /**
+     * Returns how long a connection may be silent before it is assumed dead and dropped.
+     * @return the heartbeat timeout in seconds.
+     */
+    public int getHeartbeatTimeoutSeconds() {
+        return m_heartbeatTimeoutSeconds;
+    }
+
+    /**
+     * Sets how long a connection may be silent before it is assumed dead and dropped.  It should be a few heartbeat
+     * intervals, so a live connection has several PINGs to answer first.
+     * @param heartbeatTimeoutSeconds the timeout in seconds, values below one are treated as one.
+     */
+    public void setHeartbeatTimeoutSeconds(int heartbeatTimeoutSeconds) {
+        m_heartbeatTimeoutSeconds = Math.max(1, heartbeatTimeoutSeconds);
+    }
+
+    /**
+     * Returns the sustained rate of messages a client may send.
+     * @return the messages per second, zero if not limited.
+     */
+    public int getRateMessagesPerSecond() {
+        return m_rateMessagesPerSecond;
+    }
+
+    /**
+     * Sets the sustained rate of messages a client may send.  Heartbeats and logouts are not counted, and peer links
+     * are never limited.
+     * @param rateMessagesPerSecond the messages per second, zero for no limit.
+     */
+    public void setRateMessagesPerSecond(int rateMessagesPerSecond) {
+        m_rateMessagesPerSecond = Math.max(0, rateMessagesPerSecond);
+    }
+
+    /**
+     * Returns the sustained rate of bytes a client may send.
+     * @return the bytes per second, zero if not limited.
+     */
+    public int getRateBytesPerSecond() {
+        return m_rateBytesPerSecond;
+    }
+
+    /**
+     * Sets the sustained rate of bytes a client may send, counted as the frames arrive on the wire.
+     * @param rateBytesPerSecond the bytes per second, zero for no limit.
+     */
+    public void setRateBytesPerSecond(int rateBytesPerSecond) {
+        m_rateBytesPerSecond = Math.max(0, rateBytesPerSecond);
+    }
+
+    /**
+     * Returns how many seconds' worth of messages and bytes a client may send in a burst.
+     * @return the burst in seconds.
+     */
+    public int getRateBurstSeconds() {
+        return m_rateBurstSeconds;
+    }
+
+    /**
+     * Sets how many seconds' worth of messages and bytes a client may send in a burst, before the sustained rates
+     * apply.
+     * @param rateBurstSeconds the burst in seconds, values below one are treated as one.
+     */
+    public void setRateBurstSeconds(int rateBurstSeconds) {
+        m_rateBurstSeconds = Math.max(1, rateBurstSeconds);
+    }
+
+    /**
+     * Returns what is done with a message sent faster than the rate limits allow.
+     * @return the rate limit policy.
+     */
+    public RateLimitPolicy getRateLimitPolicy() {
+        return m_rateLimitPolicy;
+    }
+
+    /**
+     * Sets what is done with a message sent faster than the rate limits allow.
+     * @param rateLimitPolicy the rate limit policy, ignored if null.
+     */
+    public void setRateLimitPolicy(RateLimitPolicy rateLimitPolicy) {
+        if (rateLimitPolicy != null) {
+            m_rateLimitPolicy = rateLimitPolicy;
+        }
+    }
+
+    /**
+     * Returns how long a client's resolved hostname is cached.
+     * @return the time to live in seconds, zero if hostnames are not resolved.
+     */
+    public int getHostnameTtlSeconds() {
+        return m_hostnameTtlSeconds;
+    }
+
+    /**
+     * Sets how long a client's resolved hostname is cached before it is resolved again.  Hostnames are resolved in
+     * the background, users are shown a client's address until its name is known.
+     * @param hostnameTtlSeconds the time to live in seconds, zero to never resolve hostnames and show addresses.
+     */
+    public void setHostnameTtlSeconds(int hostnameTtlSeconds) {
+        m_hostnameTtlSeconds = Math.max(0, hostnameTtlSeconds);
+    }
+
+    /**
+     * Returns the most lines kept in each of the server display's text areas.
+     * @return the most lines kept.
+     */
+    public int getScrollbackLines() {
+        return m_scrollbackLines;
+    }
+
+    /**
+     * Sets the most lines kept in each of the server display's text areas, older lines are trimmed from the top and
+     * are only in the logs.
+     * @param scrollbackLines the most lines kept, at least one.
+     */
+    public void setScrollbackLines(int scrollbackLines) {
+        m_scrollbackLines = Math.max(1, scrollbackLines);
+    }
+
+    /**
+     * Returns the most characters kept in each of the server display's text areas.
+     * @return the most characters kept.
+     */
+    public int getScrollbackChars() {
+        return m_scrollbackChars;
+    }
+
+    /**
+     * Sets the most characters kept in each of the server display's text areas, older lines are trimmed from the top
+     * and are only in the logs.
+     * @param scrollbackChars the most characters kept, at least one.
+     */
+    public void setScrollbackChars(int scrollbackChars) {
+        m_scrollbackChars = Math.max(1, scrollbackChars);
+    }
+
+    /**
+     * Returns the most chat messages retained for replay to newly connected clients.
+     * @return the message count, zero if no history is kept.
+     */
+    public int getHistoryMessages() {
+        return m_historyMessages;
+    }
+
+    /**
+     * Sets the most chat messages retained for replay to newly connected clients.  Storage for this many messages is
+     * allocated when the server is created.
+     * @param historyMessages the message count, zero to keep no history.
+     */
+    public void setHistoryMessages(int historyMessages) {
+        m_historyMessages = Math.max(0, historyMessages);
+    }
+
+    /**
+     * Returns the most bytes of chat messages retained for replay to newly connected clients.
+     * @return the byte limit.
+     */
+    public int getHistoryBytes() {
+        return m_historyBytes;
+    }
+
+    /**
+     * Sets the most bytes of chat messages retained for replay to newly connected clients, the oldest messages are
+     * dropped first to stay within it.
+     * @param historyBytes the byte limit.
+     */
+    public void setHistoryBytes(int historyBytes) {
+        m_historyBytes = Math.max(0, historyBytes);
+    }
+
+    /**
+     * Returns the size a server log journal segment is rolled over at.
+     * @return the segment size in bytes.
+     */
+    public int getJournalSegmentBytes() {
+        return m_journalSegmentBytes;
+    }
+
+    /**
+     * Sets the size a server log journal segment is rolled over at.
+     * @param journalSegmentBytes the segment size in bytes, values below 4096 are treated as 4096.
+     */
+    public void setJournalSegmentBytes(int journalSegmentBytes) {
+        m_journalSegmentBytes = Math.max(4096, journalSegmentBytes);
+    }
+
+    /**
+     * Returns when the server log journals force what they have written to disk.
+     * @return the fsync policy.
+     */
+    public FsyncPolicy getJournalFsync() {
+        return m_journalFsync;
+    }
+
+    /**
+     * Sets when the server log journals force what they have written to disk.
+     * @param journalFsync the fsync policy, null is ignored.
+     */
+    public void setJournalFsync(FsyncPolicy journalFsync) {
+        if (journalFsync != null) {
+            m_journalFsync = journalFsync;
+        }
+    }
+
+    /**
+     * Returns the shortest time between forces of a server log journal under the INTERVAL policy.
+     * @return the interval in milliseconds.
+     */
+    public int getJournalFsyncMillis() {
+        return m_journalFsyncMillis;
+    }
+
+    /**
+     * Sets the shortest time between forces of a server log journal under the INTERVAL policy.
+     * @param journalFsyncMillis the interval in milliseconds.
+     */
+    public void setJournalFsyncMillis(int journalFsyncMillis) {
+        m_journalFsyncMillis = Math.max(0, journalFsyncMillis);
+    }
+
+    /**
+     * Returns the most server log records waiting to be written before new ones are dropped.
+     * @return the log queue capacity.
+     */
+    public int getLogQueueCapacity() {
+        return m_logQueueCapacity;
+    }
+
+    /**
+     * Sets the most server log records waiting to be written before new ones are dropped.  Dropped records are
+     * counted and noted in the event log once the writer catches up.
+     * @param logQueueCapacity the log queue capacity, values below one are treated as one.
+     */
+    public void setLogQueueCapacity(int logQueueCapacity) {
+        m_logQueueCapacity = Math.max(1, logQueueCapacity);
+    }
+
+    /**
+     * Returns the seconds between saves of the chat search index.
+     * @return the seconds between saves, zero if it is only saved when the server log is closed.
+     */
+    public int getIndexSnapshotSeconds() {
+        return m_indexSnapshotSeconds;
+    }
+
+    /**
+     * Sets the seconds between saves of the chat search index.  Lines logged since the last save are indexed again
+     * from the logs after an unclean shutdown.
+     * @param indexSnapshotSeconds the seconds between saves, zero to only save it when the server log is closed.
+     */
+    public void setIndexSnapshotSeconds(int indexSnapshotSeconds) {
+        m_indexSnapshotSeconds = Math.max(0, indexSnapshotSeconds);
+    }
+
+    /**
+     * Creates a configuration from the defaults, overridden by any datchat.server.* system properties.
+     * @return the configuration.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setMode(enumProperty("mode", config.getMode()));
+        config.setIoThreads(intProperty("ioThreads", config.getIoThreads()));
+        config.setQueueCapacity(intProperty("queueCapacity", config.getQueueCapacity()));
+        config.setOverflowPolicy(enumProperty("overflowPolicy", config.getOverflowPolicy()));
+        config.setOverflowBlockMillis(intProperty("overflowBlockMillis", (int) config.getOverflowBlockMillis()));
+        config.setWriteBatchFrames(intProperty("writeBatchFrames", config.getWriteBatchFrames()));
+        config.setWriteBatchBytes(intProperty("writeBatchBytes", config.getWriteBatchBytes()));
+        config.setWriteDelayMicros(intProperty("writeDelayMicros", config.getWriteDelayMicros()));
+        config.setSessionResetMessages(intProperty("sessionResetMessages", config.getSessionResetMessages()));
+        config.setSessionResetBytes(intProperty("sessionResetBytes", config.getSessionResetBytes()));
+        config.setHistoryMessages(intProperty("historyMessages", config.getHistoryMessages()));
+        config.setHistoryBytes(intProperty("historyBytes", config.getHistoryBytes()));
+        config.setJournalSegmentBytes(intProperty("journalSegmentBytes", config.getJournalSegmentBytes()));
+        config.setJournalFsync(enumProperty("journalFsync", config.getJournalFsync()));
+        config.setJournalFsyncMillis(intProperty("journalFsyncMillis", config.getJournalFsyncMillis()));
+        config.setLogQueueCapacity(intProperty("logQueueCapacity", config.getLogQueueCapacity()));
+        config.setIndexSnapshotSeconds(intProperty("indexSnapshotSeconds", config.getIndexSnapshotSeconds()));
+        config.setStatsIntervalSeconds(intProperty("statsIntervalSeconds", config.getStatsIntervalSeconds()));
+        config.setNodeId(System.getProperty(PROPERTY_PREFIX + "nodeId"));
+        config.setPeers(listProperty("peers"));
+        config.setPeerSecret(System.getProperty(PROPERTY_PREFIX + "peerSecret"));
+        config.setLinkQueueCapacity(intProperty("linkQueueCapacity", config.getLinkQueueCapacity()));
+        config.setPeerRetrySeconds(intProperty("peerRetrySeconds", config.getPeerRetrySeconds()));
+        config.setPresenceWindowMillis(intProperty("presenceWindowMillis", config.getPresenceWindowMillis()));
+        config.setHeartbeatIntervalSeconds(intProperty("heartbeatIntervalSeconds", config.getHeartbeatIntervalSeconds()));
+        config.setHeartbeatTimeoutSeconds(intProperty("heartbeatTimeoutSeconds", config.getHeartbeatTimeoutSeconds()));
+        config.setRateMessagesPerSecond(intProperty("rateMessagesPerSecond", config.getRateMessagesPerSecond()));
+        config.setRateBytesPerSecond(intProperty("rateBytesPerSecond", config.getRateBytesPerSecond()));
+        config.setRateBurstSeconds(intProperty("rateBurstSeconds", config.getRateBurstSeconds()));
+        config.setRateLimitPolicy(enumProperty("rateLimitPolicy", config.getRateLimitPolicy()));
+        config.setHostnameTtlSeconds(intProperty("hostnameTtlSeconds", config.getHostnameTtlSeconds()));
+        config.setScrollbackLines(intProperty("scrollbackLines", config.getScrollbackLines()));
+        config.setScrollbackChars(intProperty("scrollbackChars", config.getScrollbackChars()));
+        return config;
+    }
+
+    /**
+     * Reads an enum system property, ignoring case and treating dashes as underscores.
+     * @param <E> the enum type.
+     * @param name the property name, without the prefix.
+     * @param fallback the value to use if the property is missing or invalid, never null.
+     * @return the property value.
+     */
+    static <E extends Enum<E>> E enumProperty(String name, E fallback) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Enum.valueOf(fallback.getDeclaringClass(), value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException iae) {
+            System.out.println("Ignoring invalid value for " + PROPERTY_PREFIX + name + ":  " + value);
+            return fallback;
+        }
+    }
+
+    /**
+     * Reads a comma separated list system property.
+     * @param name the property name, without the prefix.
+     * @return the non-blank entries, empty if the property is unset.
+     */
+    static List<String> listProperty(String name) {
+        List<String> values = new ArrayList<>();
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                if (!entry.trim().isEmpty()) {
+                    values.add(entry.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads an integer system property, returning the fallback if it is unset or not a number.
+     * @param name the property name, without the prefix.
+     * @param fallback the value to use if the property is missing or invalid.
+     * @return the property value.
+     */
+    static int intProperty(String name, int fallback) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            System.out.println("Ignoring invalid value for " + PROPERTY_PREFIX + name + ":  " + value);
+            return fallback;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package datchat.server;
 
+import datchat.ChatLine;
 import datchat.UserStatus;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,12 +29,17 @@ public class ServerController implements ServerListener, ServerDisplayListener {
     }
 
     @Override
-    public void handleServerMessageOutput(String message) {
+    public void handleServerMessageOutput(ChatLine message) {
         m_outHandlers.stream().forEach((soh) -> {
             soh.handleChatRoomMsg(message);
         });
     }
 
+    @Override
+    public void handleClientQueueDepth(String username, int depth, int capacity) {
+        handleServerLogOutput("Outbound queue for " + username + ":  " + depth + "/" + capacity + " messages.");
+    }
+
     @Override
     public void requestServerStop() {
         m_server.stop();
@@ -1,6 +1,8 @@
 package datchat.server;
 
+import datchat.ChatLine;
 import datchat.Datchat;
+import datchat.ScrollbackDocument;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Font;
@@ -49,8 +51,18 @@ public class ServerDisplay implements ServerOutputHandler {
      * @param defaultPort the default port for the display to show in the Port box.
      */
     public ServerDisplay(int defaultPort) {
+        this(defaultPort, new ServerConfig());
+    }
+
+    /**
+     * Constructs a new Server Display with the supplied default port, keeping as much chat and event output as the
+     * supplied configuration allows.
+     * @param defaultPort the default port for the display to show in the Port box.
+     * @param config the server configuration.
+     */
+    public ServerDisplay(int defaultPort, ServerConfig config) {
         m_listeners = new ArrayList<>();
-        initializeDisplay(defaultPort);
+        initializeDisplay(defaultPort, config);
     }
     
     /**
@@ -63,7 +75,7 @@ public class ServerDisplay implements ServerOutputHandler {
         }
     }
     
-    private void initializeDisplay(int port) {
+    private void initializeDisplay(int port, ServerConfig config) {
         m_frame = new JFrame("DatChat Server - " + Datchat.VERSION);
         
         // Initialize Server Configuration Panel and components.
@@ -141,17 +153,17 @@ public class ServerDisplay implements ServerOutputHandler {
         // the event and chat room
         JPanel center = new JPanel(new GridLayout(2, 1));
         // Chat Message Area
-        m_chat = new JTextArea(20, 20);
+        m_chat = new JTextArea(new ScrollbackDocument(config.getScrollbackLines(), config.getScrollbackChars()), null, 20, 20);
         m_chat.setEditable(false);
         m_chat.setFont(new Font("Monospaced", Font.PLAIN, 13));
-        handleChatRoomMsg("Chat room.\n");
+        appendChat("Chat room.\n");
         JScrollPane chatScrollPane = new JScrollPane(m_chat);
         chatScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         chatScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         center.add(chatScrollPane);
         
         // Event Message Area
-        m_event = new JTextArea(20, 20);
+        m_event = new JTextArea(new ScrollbackDocument(config.getScrollbackLines(), config.getScrollbackChars()), null, 20, 20);
         m_event.setEditable(false);
         m_event.setFont(new Font("Monospaced", Font.PLAIN, 13));
         handleEventMsg("Events log.\n");
@@ -191,15 +203,27 @@ public class ServerDisplay implements ServerOutputHandler {
     }
 
     /**
-     * Appends a message to the chat room display.
-     * @param str the message to append.
+     * Appends a message to the chat room display, laying it out on the event dispatch thread.
+     * @param line the message to append.
      */
     @Override
-    public void handleChatRoomMsg(String str) {
+    public void handleChatRoomMsg(ChatLine line) {
+        SwingUtilities.invokeLater(() -> {
+            m_chat.append(line.toString());
+            m_chat.append(System.lineSeparator());
+            m_chat.setCaretPosition(m_chat.getDocument().getLength());
+        });
+    }
+
+    /**
+     * Appends text to the chat room display.
+     * @param str the text to append.
+     */
+    private void appendChat(String str) {
         SwingUtilities.invokeLater(() -> {
             m_chat.append(str);
             m_chat.append(System.lineSeparator());
-            m_chat.setCaretPosition(m_chat.getText().length() - 1);
+            m_chat.setCaretPosition(m_chat.getDocument().getLength());
         });
     }
 
@@ -212,7 +236,7 @@ public class ServerDisplay implements ServerOutputHandler {
         SwingUtilities.invokeLater(() -> {
             m_event.append(Datchat.CHAT_DATE_FORMATTER.format(System.currentTimeMillis()) + "  " + str);
             m_event.append(System.lineSeparator());
-            m_event.setCaretPosition(m_event.getText().length() - 1);
+            m_event.setCaretPosition(m_event.getDocument().getLength());
         });
     }
 
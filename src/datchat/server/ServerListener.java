@@ -1,5 +1,7 @@
 package datchat.server;
 
+import datchat.ChatLine;
+
 /**
  * This class listens for events from the server and informs interested listeners.
  * @author adam
@@ -8,5 +10,14 @@ public interface ServerListener {
     
     public void handleServerLogOutput(String logMessage);
     
-    public void handleServerMessageOutput(String message);
+    public void handleServerMessageOutput(ChatLine message);
+    
+    /**
+     * Reports the depth of a client's outbound queue when it moves between empty, quarter, half, three-quarter and
+     * completely full.
+     * @param username the user the queue belongs to.
+     * @param depth the number of messages waiting to be written.
+     * @param capacity the most messages the queue holds.
+     */
+    public void handleClientQueueDepth(String username, int depth, int capacity);
 }
@@ -1,31 +1,150 @@
 package datchat.server;
 
+import datchat.ChatLine;
 import datchat.Datchat;
-import datchat.FileTools;
+import datchat.HistoryPage;
+import datchat.SearchResults;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- *
+ * Writes the server's chat room and event output to a pair of journals in the logs directory.  The handler methods
+ * only queue the output, it is written in batches by the log pipeline's own thread.  Chat lines are indexed as they
+ * are written, making the whole chat log directory searchable.  The log's timer thread forces the journals to disk
+ * under the INTERVAL fsync policy and saves the index periodically.
  * @author adam
  */
-public class ServerLog implements ServerOutputHandler {
+public class ServerLog implements ServerOutputHandler, ChatArchive {
     
-    private final String m_eventLog;
-    private final String m_chatLog;
+    /** The directory the journals are written to. */
+    private static final Path LOG_DIRECTORY = Paths.get("./logs");
     
+    private final ChatJournal m_eventLog;
+    private final ChatJournal m_chatLog;
+    private final LogPipeline m_pipeline;
+    private final ChatIndex m_index;
+    
+    /** Runs the log's periodic work off the writer thread. */
+    private final ScheduledExecutorService m_timer;
+    
+    /** Creates a server log with the default journal settings. */
     public ServerLog() {
-        long now = System.currentTimeMillis();
-        m_eventLog = "./logs/" + Datchat.CHAT_FILE_FORMATTER.format(now) + "-dat-event.log";
-        m_chatLog = "./logs/" + Datchat.CHAT_FILE_FORMATTER.format(now) + "-dat-chat.log";
+        this(new ServerConfig());
+    }
+    
+    /**
+     * Creates a server log with the journal settings of the supplied configuration.
+     * @param config the server configuration.
+     */
+    public ServerLog(ServerConfig config) {
+        // Bring the search index up to date with the existing logs before anything new is written.
+        m_index = new ChatIndex(LOG_DIRECTORY);
+        try {
+            m_index.open();
+        } catch (IOException ioex) {
+            System.out.println("Error indexing the existing chat logs, searches will miss some of them.");
+            ioex.printStackTrace();
+        }
+        
+        String started = Datchat.CHAT_FILE_FORMATTER.format(System.currentTimeMillis());
+        m_eventLog = createJournal(config, started, "-dat-event");
+        m_chatLog = createJournal(config, started, "-dat-chat");
+        m_chatLog.setRecordListener(m_index);
+        m_pipeline = new LogPipeline(config.getLogQueueCapacity(), m_eventLog);
+        
+        m_timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "datchat-log-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        int fsyncInterval = config.getJournalFsyncMillis();
+        if (config.getJournalFsync() == FsyncPolicy.INTERVAL && fsyncInterval > 0) {
+            m_timer.scheduleWithFixedDelay(this::forceJournals, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+        int snapshotInterval = config.getIndexSnapshotSeconds();
+        if (snapshotInterval > 0) {
+            m_timer.scheduleWithFixedDelay(this::saveIndex, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+    }
+    
+    /** Forces the tail of each journal to disk once the fsync interval has passed since it was written. */
+    private void forceJournals() {
+        try {
+            m_chatLog.forceIfDue();
+            m_eventLog.forceIfDue();
+        } catch (IOException ioex) {
+            System.out.println("Error forcing the server log to disk.");
+            ioex.printStackTrace();
+        }
+    }
+    
+    /** Saves the search index if anything has been indexed since it was last saved. */
+    private void saveIndex() {
+        try {
+            m_index.saveIfChanged();
+        } catch (IOException ioex) {
+            System.out.println("Error saving the chat index, it will be saved again next time.");
+            ioex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Creates a journal in the logs directory.
+     * @param config the server configuration.
+     * @param started the time the server started, which the journal's segment files are named after.
+     * @param kind what the journal holds, which the segment files are named with after their sequence number.
+     * @return the journal.
+     */
+    private static ChatJournal createJournal(ServerConfig config, String started, String kind) {
+        return new ChatJournal(LOG_DIRECTORY, started, kind, config.getJournalSegmentBytes(), config.getJournalFsync(),
+                config.getJournalFsyncMillis());
     }
 
     @Override
-    public void handleChatRoomMsg(String msg) {
-        FileTools.log(m_chatLog, msg);
+    public void handleChatRoomMsg(ChatLine msg) {
+        m_pipeline.offer(m_chatLog, msg);
     }
 
     @Override
     public void handleEventMsg(String msg) {
-        FileTools.log(m_eventLog, Datchat.CHAT_DATE_FORMATTER.format(System.currentTimeMillis()) + "  " + msg);
+        m_pipeline.offer(m_eventLog, msg);
     }
     
+    /**
+     * Returns the number of log records dropped because the disk could not keep up.
+     * @return the number of log records dropped.
+     */
+    public long getDroppedRecords() {
+        return m_pipeline.getDropped();
+    }
+    
+    @Override
+    public SearchResults search(String query, int page, int pageSize) throws IOException {
+        return m_index.search(query, page, pageSize);
+    }
+
+    @Override
+    public HistoryPage history(long before, long beforeTime, int limit) throws IOException {
+        return m_index.history(before, beforeTime, limit);
+    }
+    
+    /** Writes out anything still queued, closes both journals and saves the search index. */
+    public void close() {
+        m_timer.shutdownNow();
+        try {
+            m_pipeline.close();
+            m_chatLog.close();
+            m_eventLog.close();
+            m_index.close();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioex) {
+            System.out.println("Error closing the server log.");
+            ioex.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package datchat.server;
+
+/**
+ * The ways the server can service its client connections.
+ * @author adam
+ */
+public enum ServerMode {
+    /** One blocking platform thread per connected client (the original server design). */
+    THREAD_PER_CLIENT,
+    /** A small, fixed set of non-blocking selector threads servicing every connection. */
+    NIO,
+    /**
+     * One blocking virtual thread per connected client, with the accept loop on a virtual thread as well.  Virtual
+     * threads need Java 21, on older JDKs this mode falls back to platform threads.
+     */
+    VIRTUAL_THREAD;
+}
@@ -1,12 +1,14 @@
 package datchat.server;
 
+import datchat.ChatLine;
+
 /**
  *
  * @author adam
  */
 public interface ServerOutputHandler {
     
-    public void handleChatRoomMsg(String msg);
+    public void handleChatRoomMsg(ChatLine msg);
     
     public void handleEventMsg(String msg);
 }
@@ -0,0 +1,50 @@
+package datchat.server;
+
+/**
+ * A snapshot of the resources held by one connected client.
+ * @author adam
+ */
+public class SessionStats {
+
+    /** The connection id. */
+    public final int id;
+    /** The username, null if the client has not logged in yet. */
+    public final String username;
+    /** The time the client connected. */
+    public final long connectionTime;
+    /** The bytes of buffers and queued frames the server is holding on behalf of this client. */
+    public final long retainedBytes;
+    /** The number of frames waiting to be written to the client. */
+    public final int queuedFrames;
+    /** The number of frames dropped from the client's full queue by the DROP_OLDEST policy. */
+    public final long droppedFrames;
+    /** The number of messages from the client delayed, dropped or refused by its rate limit. */
+    public final long throttledMessages;
+
+    /**
+     * Constructor.
+     * @param id the connection id.
+     * @param username the username.
+     * @param connectionTime the time the client connected.
+     * @param retainedBytes the bytes held for this client.
+     * @param queuedFrames the number of frames waiting to be written.
+     * @param droppedFrames the number of frames dropped from the full queue.
+     * @param throttledMessages the number of messages held back by the rate limit.
+     */
+    public SessionStats(int id, String username, long connectionTime, long retainedBytes, int queuedFrames,
+            long droppedFrames, long throttledMessages) {
+        this.id = id;
+        this.username = username;
+        this.connectionTime = connectionTime;
+        this.retainedBytes = retainedBytes;
+        this.queuedFrames = queuedFrames;
+        this.droppedFrames = droppedFrames;
+        this.throttledMessages = throttledMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "Session " + id + " (" + username + "):  retained " + retainedBytes + " bytes, " + queuedFrames + " queued frames, "
+                + droppedFrames + " frames dropped, " + throttledMessages + " messages throttled";
+    }
+}